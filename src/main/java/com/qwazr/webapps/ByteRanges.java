@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HTTP Range support (RFC 7233) for the static servlets.
+ */
+final class ByteRanges {
+
+	/**
+	 * Above this number of ranges the Range header is ignored and the full content is sent
+	 */
+	final static int MAX_RANGES = 16;
+
+	private final static String BYTES_UNIT = "bytes=";
+
+	@FunctionalInterface
+	interface RangeWriter {
+
+		/**
+		 * Write a part of the content
+		 *
+		 * @param start  the position of the first byte
+		 * @param length the number of bytes to write
+		 * @param output the stream to write to
+		 * @throws IOException if any I/O error occurs
+		 */
+		void write(long start, long length, OutputStream output) throws IOException;
+	}
+
+	final static class Range {
+
+		final long start;
+		final long end;
+
+		private Range(final long start, final long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		long length() {
+			return end - start + 1;
+		}
+
+		String contentRange(final long totalLength) {
+			return "bytes " + start + '-' + end + '/' + totalLength;
+		}
+	}
+
+	/**
+	 * Parse a Range header.
+	 *
+	 * @param rangeHeader the value of the Range header
+	 * @param length      the full length of the content
+	 * @return null if the header must be ignored, an empty list if no range is satisfiable
+	 */
+	static List<Range> parse(final String rangeHeader, final long length) {
+		if (rangeHeader == null || !rangeHeader.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length()))
+			return null;
+		final String[] specs = rangeHeader.substring(BYTES_UNIT.length()).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		final List<Range> ranges = new ArrayList<>(specs.length);
+		for (final String spec : specs) {
+			final int dash = spec.indexOf('-');
+			if (dash == -1)
+				return null;
+			final String first = spec.substring(0, dash).trim();
+			final String last = spec.substring(dash + 1).trim();
+			final long start;
+			final long end;
+			try {
+				if (first.isEmpty()) {
+					// Suffix range: the last N bytes
+					if (last.isEmpty())
+						return null;
+					final long suffix = Long.parseLong(last);
+					if (suffix <= 0)
+						continue;
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(first);
+					if (last.isEmpty())
+						end = length - 1;
+					else {
+						final long lastPos = Long.parseLong(last);
+						if (lastPos < start)
+							return null;
+						end = Math.min(lastPos, length - 1);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (start < 0)
+				return null;
+			if (start >= length || end < start)
+				continue;
+			ranges.add(new Range(start, end));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Check the If-Range precondition
+	 *
+	 * @param request      the current request
+	 * @param etag         the current ETag of the content
+	 * @param lastModified the current modification time of the content
+	 * @return true if the Range header can be applied
+	 */
+	static boolean checkIfRange(final HttpServletRequest request, final String etag, final Long lastModified) {
+		final String ifRange = request.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("W/"))
+			return false;
+		if (ifRange.startsWith("\""))
+			return etag != null && StaticFileServlet.etagMatches(ifRange, etag);
+		if (lastModified == null)
+			return false;
+		try {
+			return request.getDateHeader("If-Range") / 1000 == lastModified / 1000;
+		} catch (IllegalArgumentException e) {
+			return etag != null && StaticFileServlet.etagMatches(ifRange, etag);
+		}
+	}
+
+	/**
+	 * Serve the partial content if the request contains an applicable Range header.
+	 * The other headers (type, validators, cache) are expected to be already set.
+	 *
+	 * @param request      the current request
+	 * @param response     the current response
+	 * @param type         the content type of the full content
+	 * @param length       the full length of the content
+	 * @param etag         the current ETag of the content
+	 * @param lastModified the current modification time of the content
+	 * @param writer       the writer in charge of copying a part of the content
+	 * @return true if a partial (206) or an unsatisfiable (416) response has been sent
+	 * @throws IOException if any I/O error occurs
+	 */
+	static boolean serve(final HttpServletRequest request, final HttpServletResponse response, final String type,
+			final long length, final String etag, final Long lastModified, final RangeWriter writer)
+			throws IOException {
+		if (length < 0)
+			return false;
+		final List<Range> ranges = parse(request.getHeader("Range"), length);
+		if (ranges == null || !checkIfRange(request, etag, lastModified))
+			return false;
+		if (ranges.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.setContentLengthLong(0);
+			return true;
+		}
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		final ServletOutputStream out = response.getOutputStream();
+		if (ranges.size() == 1) {
+			final Range range = ranges.get(0);
+			response.setHeader("Content-Range", range.contentRange(length));
+			response.setContentLengthLong(range.length());
+			writer.write(range.start, range.length(), out);
+			out.flush();
+			return true;
+		}
+		final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) +
+				Long.toHexString(System.nanoTime());
+		final List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+		long contentLength = 0;
+		for (final Range range : ranges) {
+			final StringBuilder sb = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+			if (type != null)
+				sb.append("Content-Type: ").append(type).append("\r\n");
+			sb.append("Content-Range: ").append(range.contentRange(length)).append("\r\n\r\n");
+			final byte[] partHeader = sb.toString().getBytes(StandardCharsets.US_ASCII);
+			partHeaders.add(partHeader);
+			contentLength += partHeader.length + range.length();
+		}
+		final byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += end.length;
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(contentLength);
+		int i = 0;
+		for (final Range range : ranges) {
+			out.write(partHeaders.get(i++));
+			writer.write(range.start, range.length(), out);
+		}
+		out.write(end);
+		out.flush();
+		return true;
+	}
+}
@@ -20,10 +20,68 @@ import com.qwazr.utils.IOUtils;
 import javax.servlet.*;
 import java.io.IOException;
 
+/**
+ * Close the resources registered by a controller once the request has been handled.
+ * The list of resources is only created when a controller asks for it using {@link #getCloseables(ServletRequest)}.
+ * The filter is mapped to every non static servlet, for the requests and the forwards. The outermost pass of the
+ * filter owns the list and closes it: a forward does not close the resources of the servlet which forwarded the
+ * request. Outside of the filter, the list cannot be created, as nothing would close it.
+ */
 public class CloseableFilter implements Filter {
 
 	public static final String ATTRIBUTE_NAME = "closeable";
 
+	/**
+	 * The number of nested passes of the filter on the current thread
+	 */
+	private final static ThreadLocal<int[]> DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+	/**
+	 * @param request the current request
+	 * @return the resources to close at the end of the request
+	 * @throws IllegalStateException if the request is not handled by a servlet covered by the filter
+	 */
+	public static IOUtils.CloseableList getCloseables(final ServletRequest request) {
+		final Object closeables = request.getAttribute(ATTRIBUTE_NAME);
+		if (closeables instanceof IOUtils.CloseableList)
+			return (IOUtils.CloseableList) closeables;
+		if (DEPTH.get()[0] == 0)
+			throw new IllegalStateException(
+					"The closeable list is only available to the controllers and the servlets covered by " +
+							CloseableFilter.class.getSimpleName());
+		final IOUtils.CloseableList newCloseables = new IOUtils.CloseableList();
+		request.setAttribute(ATTRIBUTE_NAME, newCloseables);
+		return newCloseables;
+	}
+
+	/**
+	 * A view of the list of the request which only creates it when a resource is added
+	 */
+	public static final class Lazy {
+
+		private final ServletRequest request;
+
+		Lazy(final ServletRequest request) {
+			this.request = request;
+		}
+
+		/**
+		 * @param closeable the resource to close at the end of the request
+		 * @param <T>       the type of the resource
+		 * @return the resource
+		 */
+		public <T extends AutoCloseable> T add(final T closeable) {
+			return getCloseables(request).add(closeable);
+		}
+
+		/**
+		 * @return the list of the request, created if it does not exist yet
+		 */
+		public IOUtils.CloseableList get() {
+			return getCloseables(request);
+		}
+	}
+
 	@Override
 	public void init(FilterConfig filterConfig) throws ServletException {
 	}
@@ -31,9 +89,24 @@ public class CloseableFilter implements Filter {
 	@Override
 	final public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
 			throws IOException, ServletException {
-		try (final IOUtils.CloseableList closeables = new IOUtils.CloseableList()) {
-			request.setAttribute("closeable", closeables);
+		final int[] depth = DEPTH.get();
+		if (depth[0]++ > 0) {
+			try {
+				chain.doFilter(request, response);
+			} finally {
+				depth[0]--;
+			}
+			return;
+		}
+		try {
 			chain.doFilter(request, response);
+		} finally {
+			depth[0]--;
+			final Object closeables = request.getAttribute(ATTRIBUTE_NAME);
+			if (closeables instanceof IOUtils.CloseableList) {
+				request.removeAttribute(ATTRIBUTE_NAME);
+				((IOUtils.CloseableList) closeables).close();
+			}
 		}
 	}
 
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-the-fly gzip compression of the static content.
+ * The compressed variants are kept in a LRU cache bounded by the total size of the compressed bytes.
+ * An entry is keyed by the path and the encoding, and is checked against the ETag (which includes the
+ * modification time), so a modified file is compressed again.
+ * <p>
+ * A lookup takes no lock, only the insertions are serialized. The concurrent requests of the same missing variant
+ * wait for a single compression.
+ */
+final class CompressionCache {
+
+	/**
+	 * The content smaller than this size is not worth compressing
+	 */
+	final static long MIN_CONTENT_LENGTH = 256;
+
+	/**
+	 * The content larger than this size is sent as is
+	 */
+	final static long MAX_CONTENT_LENGTH = 1024 * 1024;
+
+	/**
+	 * Only GZIP is available on the JDK, Brotli is served using precompressed siblings
+	 */
+	private final static ContentEncoding ENCODING = ContentEncoding.GZIP;
+
+	private final static Set<String> INCOMPRESSIBLE_TYPES =
+			Set.of("application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+					"application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed",
+					"application/java-archive", "application/x-stuffit", "application/pdf",
+					"application/octet-stream", "application/font-woff", "font/woff", "font/woff2");
+
+	@FunctionalInterface
+	interface ContentSource {
+		InputStream open() throws IOException;
+	}
+
+	private final static class Entry {
+
+		private final String etag;
+		private final byte[] data;
+		private volatile long lastAccess;
+
+		private Entry(final String etag, final byte[] data) {
+			this.etag = etag;
+			this.data = data;
+			this.lastAccess = System.nanoTime();
+		}
+	}
+
+	private final long maxSize;
+	private final ConcurrentHashMap<String, Entry> entries;
+	private final ConcurrentHashMap<String, CompletableFuture<byte[]>> compressions;
+	private final Object lock;
+	private long size;
+
+	CompressionCache(final long maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new ConcurrentHashMap<>();
+		this.compressions = new ConcurrentHashMap<>();
+		this.lock = new Object();
+		this.size = 0;
+	}
+
+	static boolean isCompressible(final String type) {
+		if (type == null)
+			return false;
+		final int semicolon = type.indexOf(';');
+		final String baseType =
+				(semicolon == -1 ? type : type.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+		if (baseType.startsWith("image/"))
+			return baseType.startsWith("image/svg") || baseType.equals("image/bmp") || baseType.endsWith("icon");
+		if (baseType.startsWith("video/") || baseType.startsWith("audio/"))
+			return false;
+		return !INCOMPRESSIBLE_TYPES.contains(baseType);
+	}
+
+	private byte[] get(final String key, final String etag) {
+		final Entry entry = entries.get(key);
+		if (entry == null || !entry.etag.equals(etag))
+			return null;
+		entry.lastAccess = System.nanoTime();
+		return entry.data;
+	}
+
+	private void put(final String key, final String etag, final byte[] data) {
+		if (data.length > maxSize / 2)
+			return;
+		synchronized (lock) {
+			final Entry previous = entries.put(key, new Entry(etag, data));
+			if (previous != null)
+				size -= previous.data.length;
+			size += data.length;
+			if (size > maxSize)
+				evict();
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries, until the cache is 1/8 below its bound
+	 */
+	private void evict() {
+		final long targetSize = maxSize - maxSize / 8;
+		final List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+		candidates.sort(Comparator.comparingLong(mapEntry -> mapEntry.getValue().lastAccess));
+		for (final Map.Entry<String, Entry> candidate : candidates) {
+			if (size <= targetSize)
+				break;
+			if (entries.remove(candidate.getKey(), candidate.getValue()))
+				size -= candidate.getValue().data.length;
+		}
+	}
+
+	/**
+	 * Get the compressed variant from the cache, or compress it. If the same variant is already being compressed
+	 * by another request, the result of this compression is awaited.
+	 *
+	 * @param variantName the name of the compressed variant
+	 * @param etag        the ETag of the compressed variant
+	 * @param source      the provider of the uncompressed content
+	 * @param length      the length of the uncompressed content
+	 * @return the compressed content
+	 * @throws IOException if the content cannot be read
+	 */
+	byte[] getOrCompress(final String variantName, final String etag, final ContentSource source,
+			final long length) throws IOException {
+		final byte[] cached = get(variantName, etag);
+		if (cached != null)
+			return cached;
+		final String key = etag + ':' + variantName;
+		final CompletableFuture<byte[]> compression = new CompletableFuture<>();
+		final CompletableFuture<byte[]> running = compressions.putIfAbsent(key, compression);
+		if (running != null)
+			return await(running, variantName);
+		try {
+			final byte[] data = compress(source, length);
+			put(variantName, etag, data);
+			compression.complete(data);
+			return data;
+		} catch (IOException | RuntimeException | Error e) {
+			compression.completeExceptionally(e);
+			throw e;
+		} finally {
+			compressions.remove(key, compression);
+		}
+	}
+
+	private static byte[] await(final CompletableFuture<byte[]> compression, final String variantName)
+			throws IOException {
+		try {
+			return compression.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the compression of " + variantName);
+		} catch (ExecutionException e) {
+			throw new IOException("The compression failed: " + variantName, e.getCause());
+		}
+	}
+
+	/**
+	 * @return the total size of the compressed variants in bytes
+	 */
+	long getSize() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	/**
+	 * @return the number of compressed variants
+	 */
+	int getCount() {
+		return entries.size();
+	}
+
+	private static byte[] compress(final ContentSource source, final long length) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(256, length / 3));
+		try (final InputStream input = source.open()) {
+			try (final GZIPOutputStream gzip = new GZIPOutputStream(bytes, 8192)) {
+				IOUtils.copy(input, gzip);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Send the compressed variant of the content if the type is compressible and if the client accepts it.
+	 *
+	 * @param request           the current request
+	 * @param response          the current response
+	 * @param headOnly          true to only send the headers
+	 * @param fileName          the name of the content, used as key and to build the ETag
+	 * @param type              the content type
+	 * @param length            the length of the uncompressed content
+	 * @param lastModified      the modification time of the content
+	 * @param expirationSecTime the expiration time
+	 * @param source            the provider of the uncompressed content
+	 * @return true if the response has been sent
+	 * @throws IOException if any I/O error occurs
+	 */
+	boolean serve(final HttpServletRequest request, final HttpServletResponse response, final boolean headOnly,
+			final String fileName, final String type, final long length, final long lastModified,
+			final long expirationSecTime, final ContentSource source) throws IOException {
+		if (length < MIN_CONTENT_LENGTH || length > MAX_CONTENT_LENGTH || !isCompressible(type))
+			return false;
+		response.setHeader("Vary", "Accept-Encoding");
+		if (!ContentEncoding.accepted(request.getHeader("Accept-Encoding")).contains(ENCODING))
+			return false;
+		// The compressed variant is identified as its precompressed sibling would be
+		final String variantName = fileName + ENCODING.extension;
+		final String etag = StaticFileServlet.etag(variantName, lastModified);
+		if (StaticFileServlet.notModified(etag, lastModified, expirationSecTime, request, response))
+			return true;
+		final byte[] data = getOrCompress(variantName, etag, source, length);
+		response.setHeader("Content-Encoding", ENCODING.name);
+		StaticFileServlet.head(etag, (long) data.length, type, lastModified, expirationSecTime, response);
+		if (headOnly)
+			return true;
+		if (ByteRanges.serve(request, response, type, data.length, etag, lastModified,
+				(start, count, output) -> output.write(data, (int) start, (int) count)))
+			return true;
+		final ServletOutputStream out = response.getOutputStream();
+		out.write(data);
+		out.flush();
+		return true;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The content encodings supported by the static servlets, in order of preference.
+ */
+enum ContentEncoding {
+
+	BR("br", ".br"), GZIP("gzip", ".gz");
+
+	final String name;
+	final String extension;
+
+	ContentEncoding(final String name, final String extension) {
+		this.name = name;
+		this.extension = extension;
+	}
+
+	/**
+	 * Parse an Accept-Encoding header.
+	 * An encoding is accepted if it is listed (or matched by "*") with a non-zero quality value.
+	 *
+	 * @param acceptEncoding the value of the Accept-Encoding header
+	 * @return the accepted encodings, ordered by server preference
+	 */
+	static Set<ContentEncoding> accepted(final String acceptEncoding) {
+		final Set<ContentEncoding> accepted = EnumSet.noneOf(ContentEncoding.class);
+		if (acceptEncoding == null || acceptEncoding.isEmpty())
+			return accepted;
+		final Set<ContentEncoding> refused = EnumSet.noneOf(ContentEncoding.class);
+		boolean wildcard = false;
+		for (final String token : acceptEncoding.split(",")) {
+			final int semicolon = token.indexOf(';');
+			final String coding = (semicolon == -1 ? token : token.substring(0, semicolon)).trim();
+			final boolean zero = semicolon != -1 && isZeroQuality(token.substring(semicolon + 1));
+			if ("*".equals(coding)) {
+				wildcard = !zero;
+				continue;
+			}
+			for (final ContentEncoding encoding : values()) {
+				if (encoding.name.equalsIgnoreCase(coding)) {
+					if (zero)
+						refused.add(encoding);
+					else
+						accepted.add(encoding);
+				}
+			}
+		}
+		if (wildcard)
+			for (final ContentEncoding encoding : values())
+				if (!refused.contains(encoding))
+					accepted.add(encoding);
+		return accepted;
+	}
+
+	private static boolean isZeroQuality(final String params) {
+		for (final String param : params.split(";")) {
+			final String p = param.trim();
+			if (p.startsWith("q=") || p.startsWith("Q=")) {
+				try {
+					return Float.parseFloat(p.substring(2).trim()) <= 0;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+}
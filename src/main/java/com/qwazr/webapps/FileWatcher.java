@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Watch the files served by the webapp (statics and controllers) and notify the caches when a file changes.
+ * The changes are detected using the WatchService of the file system. The directories which cannot be watched
+ * that way, or all of them when polling is forced, are scanned periodically.
+ */
+final class FileWatcher implements Closeable {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(FileWatcher.class);
+
+	/**
+	 * The default interval between two scans of the polled directories
+	 */
+	final static long DEFAULT_POLLING_INTERVAL_MS = 2000;
+
+	@FunctionalInterface
+	interface Listener {
+
+		/**
+		 * Called when a file has been created, modified or deleted.
+		 *
+		 * @param path the changed file, or a directory if any file below it may have changed
+		 */
+		void changed(Path path);
+	}
+
+	private final static class Watch {
+
+		private final Path root;
+		private final boolean recursive;
+		private final Listener listener;
+		private Map<Path, Long> snapshot;
+
+		private Watch(final Path root, final boolean recursive, final Listener listener) {
+			this.root = root;
+			this.recursive = recursive;
+			this.listener = listener;
+		}
+
+		private boolean covers(final Path path) {
+			return recursive ? path.startsWith(root) : root.equals(path) || root.equals(path.getParent());
+		}
+
+		private void fire(final Path path) {
+			try {
+				listener.changed(path);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, e, () -> "File change listener failure: " + path);
+			}
+		}
+
+		private Map<Path, Long> scan() throws IOException {
+			final Map<Path, Long> files = new HashMap<>();
+			try (final Stream<Path> stream = Files.walk(root, recursive ? Integer.MAX_VALUE : 1)) {
+				stream.filter(Files::isRegularFile).forEach(path -> {
+					try {
+						files.put(path, Files.getLastModifiedTime(path).toMillis() * 31 + Files.size(path));
+					} catch (NoSuchFileException e) {
+						// Deleted during the scan
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return files;
+		}
+	}
+
+	private final long pollingIntervalMs;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> keys;
+	private final List<Watch> watches;
+	private final List<Watch> polledWatches;
+	private Thread pollingThread;
+	private volatile boolean closed;
+
+	/**
+	 * @param pollingIntervalMs the interval between two scans of the polled directories
+	 * @param forcePolling      true to poll all the directories, for file systems which don't emit events
+	 */
+	FileWatcher(final long pollingIntervalMs, final boolean forcePolling) {
+		this.pollingIntervalMs = pollingIntervalMs;
+		this.keys = new ConcurrentHashMap<>();
+		this.watches = new CopyOnWriteArrayList<>();
+		this.polledWatches = new CopyOnWriteArrayList<>();
+		WatchService service = null;
+		if (!forcePolling) {
+			try {
+				service = FileSystems.getDefault().newWatchService();
+			} catch (IOException | UnsupportedOperationException e) {
+				LOGGER.log(Level.WARNING, e, () -> "The watch service is not available, falling back to polling");
+			}
+		}
+		this.watchService = service;
+		if (watchService != null) {
+			final Thread watchThread = new Thread(this::watchLoop, "webapp-file-watcher");
+			watchThread.setDaemon(true);
+			watchThread.start();
+		}
+	}
+
+	/**
+	 * Watch a file or a directory. A directory is watched recursively, a file is watched through its parent
+	 * directory.
+	 *
+	 * @param path     the file or the directory to watch
+	 * @param listener the listener to notify
+	 * @return true if the changes will be notified, false if the path cannot be watched
+	 */
+	boolean register(final Path path, final Listener listener) {
+		Objects.requireNonNull(listener, "The listener is null");
+		final boolean directory = Files.isDirectory(path);
+		final Watch watch = new Watch(directory ? path : path.getParent(), directory, listener);
+		if (watch.root == null || !Files.isDirectory(watch.root))
+			return false;
+		if (watchService != null) {
+			try {
+				registerDirectories(watch.root, watch.recursive);
+				watches.add(watch);
+				return true;
+			} catch (IOException | UnsupportedOperationException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot watch " + watch.root + ", falling back to polling");
+			}
+		}
+		try {
+			watch.snapshot = watch.scan();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot poll " + watch.root);
+			return false;
+		}
+		polledWatches.add(watch);
+		startPolling();
+		return true;
+	}
+
+	private synchronized void startPolling() {
+		if (pollingThread != null || closed)
+			return;
+		pollingThread = new Thread(this::pollingLoop, "webapp-file-poller");
+		pollingThread.setDaemon(true);
+		pollingThread.start();
+	}
+
+	private void registerDirectories(final Path root, final boolean recursive) throws IOException {
+		if (!recursive) {
+			registerDirectory(root);
+			return;
+		}
+		try (final Stream<Path> stream = Files.walk(root)) {
+			stream.filter(Files::isDirectory).forEach(dir -> {
+				try {
+					registerDirectory(dir);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void registerDirectory(final Path dir) throws IOException {
+		keys.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+	}
+
+	private void dispatch(final Path path) {
+		for (final Watch watch : watches)
+			if (watch.covers(path))
+				watch.fire(path);
+	}
+
+	private void watchLoop() {
+		while (!closed) {
+			final WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			final Path dir = keys.get(key);
+			if (dir != null) {
+				for (final WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// Some events have been lost, anything below the directory may have changed
+						dispatch(dir);
+						continue;
+					}
+					final Path path = dir.resolve((Path) event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+						registerCreatedDirectory(path);
+					dispatch(path);
+				}
+			}
+			if (!key.reset())
+				keys.remove(key);
+		}
+	}
+
+	private void registerCreatedDirectory(final Path path) {
+		for (final Watch watch : watches) {
+			if (watch.recursive && path.startsWith(watch.root)) {
+				try {
+					registerDirectories(path, true);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, e, () -> "Cannot watch " + path);
+				}
+				return;
+			}
+		}
+	}
+
+	private void pollingLoop() {
+		while (!closed) {
+			try {
+				Thread.sleep(pollingIntervalMs);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (final Watch watch : polledWatches)
+				poll(watch);
+		}
+	}
+
+	private void poll(final Watch watch) {
+		final Map<Path, Long> snapshot;
+		try {
+			snapshot = watch.scan();
+		} catch (IOException e) {
+			watch.snapshot = null;
+			watch.fire(watch.root);
+			return;
+		}
+		final Map<Path, Long> previous = watch.snapshot;
+		watch.snapshot = snapshot;
+		if (previous == null) {
+			watch.fire(watch.root);
+			return;
+		}
+		snapshot.forEach((path, signature) -> {
+			if (!signature.equals(previous.remove(path)))
+				watch.fire(path);
+		});
+		previous.keySet().forEach(watch::fire);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (pollingThread != null)
+			pollingThread.interrupt();
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, e::getMessage);
+			}
+		}
+	}
+}
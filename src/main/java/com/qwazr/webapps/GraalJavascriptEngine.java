@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+
+import javax.script.ScriptException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Javascript controllers running on GraalJS.
+ * Each instance owns a long-lived polyglot context. A context is single-threaded, so the instances are pooled one
+ * per thread (or in a fixed pool) by the {@link ScriptEnginePool}.
+ * <p>
+ * A controller is evaluated as the body of a function: its top-level var, let, const and function declarations are
+ * local to the call. The variables of the request are set as globals for the call and every global added during
+ * the call (including an assignment to an undeclared variable) is removed afterwards, so a request never sees the
+ * globals of a previous one, as with the fresh bindings used for Nashorn.
+ * <p>
+ * The contexts share the same engine, so a controller is parsed once and its code is shared by all the contexts.
+ * It runs on any JDK 11+, the Graal compiler is used if available, otherwise the code is interpreted.
+ * The Graal SDK and GraalJS are optional dependencies, see {@link #isAvailable()}.
+ */
+public final class GraalJavascriptEngine implements JavascriptEngine {
+
+	public final static String NAME = "graaljs";
+
+	private final static String LANGUAGE = "js";
+
+	private final Engine engine;
+
+	private final ConcurrentHashMap<Path, Parsed> sources;
+
+	private final LongAdder compilations;
+
+	/**
+	 * @return true if the GraalJS classes are on the classpath
+	 */
+	public static boolean isAvailable() {
+		try {
+			Class.forName("org.graalvm.polyglot.Engine", false, GraalJavascriptEngine.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	public GraalJavascriptEngine() {
+		this.engine = Engine.newBuilder().build();
+		this.sources = new ConcurrentHashMap<>();
+		this.compilations = new LongAdder();
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		return false;
+	}
+
+	private final static class Parsed {
+
+		private final JavascriptSource source;
+		private final Source graalSource;
+
+		private Parsed(final JavascriptSource source, final Source graalSource) {
+			this.source = source;
+			this.graalSource = graalSource;
+		}
+	}
+
+	/**
+	 * The source is loaded once for all the contexts, the engine caches the code by source.
+	 * The controller is wrapped in a function, on the same line to keep the line numbers of the errors.
+	 */
+	private Source getSource(final JavascriptSource source) throws IOException {
+		Parsed parsed = sources.get(source.getPath());
+		if (parsed != null && parsed.source == source)
+			return parsed.graalSource;
+		final StringBuilder code = new StringBuilder("(function() {");
+		try (final BufferedReader reader = source.newReader()) {
+			final char[] buffer = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) != -1)
+				code.append(buffer, 0, read);
+		}
+		code.append("\n})");
+		parsed = new Parsed(source,
+				Source.newBuilder(LANGUAGE, code, source.getPath().getFileName().toString()).build());
+		sources.put(source.getPath(), parsed);
+		compilations.increment();
+		return parsed.graalSource;
+	}
+
+	/**
+	 * The controllers get the full host access and may look up any Java class: this is deliberate, it is what
+	 * Nashorn allows (Java.type, calls on the request and response objects) and the existing controllers rely on it.
+	 */
+	private Context newContext() {
+		return Context.newBuilder(LANGUAGE)
+				.engine(engine)
+				.allowHostAccess(HostAccess.ALL)
+				.allowHostClassLookup(className -> true)
+				.allowExperimentalOptions(true)
+				.option("js.nashorn-compat", "true")
+				.build();
+	}
+
+	@Override
+	public Instance newInstance() {
+		return new GraalInstance(newContext());
+	}
+
+	@Override
+	public long getCompilations() {
+		return compilations.sum();
+	}
+
+	@Override
+	public void close() {
+		engine.close();
+	}
+
+	private final class GraalInstance implements Instance {
+
+		private final Context context;
+		private final Value bindings;
+		/**
+		 * The globals of a new context, everything else is removed after each evaluation
+		 */
+		private final Set<String> initialGlobals;
+		private final Map<Path, Compiled> functions;
+
+		private GraalInstance(final Context context) {
+			this.context = context;
+			this.bindings = context.getBindings(LANGUAGE);
+			this.initialGlobals = new HashSet<>(bindings.getMemberKeys());
+			this.functions = new HashMap<>();
+		}
+
+		private Value getFunction(final JavascriptSource source) throws IOException {
+			Compiled compiled = functions.get(source.getPath());
+			if (compiled != null && compiled.source == source)
+				return compiled.function;
+			compiled = new Compiled(source, context.eval(getSource(source)));
+			functions.put(source.getPath(), compiled);
+			return compiled.function;
+		}
+
+		@Override
+		public void eval(final JavascriptSource source, final Map<String, Object> variables)
+				throws IOException, ScriptException {
+			try {
+				final Value function = getFunction(source);
+				variables.forEach(bindings::putMember);
+				function.executeVoid();
+			} catch (PolyglotException e) {
+				final ScriptException scriptException = new ScriptException(e.getMessage());
+				// The exception thrown by a Java method called by the script is kept as the cause
+				scriptException.initCause(e.isHostException() ? e.asHostException() : e);
+				throw scriptException;
+			} finally {
+				for (final String global : new ArrayList<>(bindings.getMemberKeys()))
+					if (!initialGlobals.contains(global))
+						bindings.removeMember(global);
+			}
+		}
+
+		@Override
+		public void close() {
+			context.close();
+		}
+	}
+
+	private final static class Compiled {
+
+		private final JavascriptSource source;
+		private final Value function;
+
+		private Compiled(final JavascriptSource source, final Value function) {
+			this.source = source;
+			this.function = function;
+		}
+	}
+}
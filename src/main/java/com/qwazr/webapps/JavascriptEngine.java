@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import javax.script.ScriptException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The engine running the Javascript controllers.
+ * An engine creates instances which are pooled by the {@link ScriptEnginePool}. An instance is used by one request
+ * at a time, unless the engine is thread safe and the pool is in SHARED mode.
+ */
+public interface JavascriptEngine extends Closeable {
+
+	/**
+	 * @return the name of the engine
+	 */
+	String getName();
+
+	/**
+	 * @return true if an instance can be used by concurrent requests
+	 */
+	boolean isThreadSafe();
+
+	/**
+	 * @return a new instance
+	 */
+	Instance newInstance();
+
+	/**
+	 * @return the number of times a controller has been compiled (or parsed) since the engine has been created
+	 */
+	default long getCompilations() {
+		return 0;
+	}
+
+	@Override
+	default void close() {
+	}
+
+	interface Instance extends Closeable {
+
+		/**
+		 * Run a controller
+		 *
+		 * @param source    the controller
+		 * @param variables the global variables exposed to the controller
+		 * @throws IOException     if the controller cannot be read
+		 * @throws ScriptException if the execution failed
+		 */
+		void eval(JavascriptSource source, Map<String, Object> variables) throws IOException, ScriptException;
+
+		@Override
+		default void close() {
+		}
+	}
+}
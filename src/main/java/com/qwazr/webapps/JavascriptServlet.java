@@ -17,52 +17,138 @@ package com.qwazr.webapps;
 
 import com.qwazr.library.LibraryServiceInterface;
 import com.qwazr.scripts.ScriptConsole;
+import com.qwazr.webapps.exception.AbstractWebappException;
 
-import javax.script.Bindings;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class JavascriptServlet extends HttpServlet {
 
-	private final ScriptEngine scriptEngine;
+	private final ScriptEnginePool scriptEnginePool;
 
 	private final Path controllerFile;
 
 	private final LibraryServiceInterface libraryService;
 
-	public JavascriptServlet(final ScriptEngine scriptEngine, final LibraryServiceInterface libraryService,
+	private final AtomicLong generation;
+
+	private volatile JavascriptSource source;
+
+	private volatile boolean watched;
+
+	JavascriptServlet(final ScriptEnginePool scriptEnginePool, final LibraryServiceInterface libraryService,
 			final Path controllerFile) {
-		this.scriptEngine = scriptEngine;
+		this.scriptEnginePool = scriptEnginePool;
 		this.libraryService = libraryService;
 		this.controllerFile = controllerFile;
+		this.generation = new AtomicLong();
+		this.watched = false;
+	}
+
+	public JavascriptServlet(final ScriptEngine scriptEngine, final LibraryServiceInterface libraryService,
+			final Path controllerFile) {
+		this(new ScriptEnginePool(ScriptEnginePool.Mode.SHARED, 1, ScriptEnginePool.DEFAULT_CHECKOUT_TIMEOUT_MS,
+				NashornJavascriptEngine.of(scriptEngine)), libraryService, controllerFile);
+	}
+
+	/**
+	 * Register the controller on the watcher. Once registered, the compiled script is kept until a change of the
+	 * file is notified, the modification time of the file is no more checked.
+	 *
+	 * @param fileWatcher the file watcher
+	 */
+	void watch(final FileWatcher fileWatcher) {
+		if (fileWatcher.register(controllerFile, path -> {
+			if (controllerFile.startsWith(path))
+				generation.incrementAndGet();
+		}))
+			watched = true;
+	}
+
+	/**
+	 * A new source is built only if the file changed, so the engines can keep the compiled script.
+	 *
+	 * @return the current version of the controller
+	 */
+	private JavascriptSource getSource() throws IOException {
+		final JavascriptSource current = source;
+		if (current != null && watched && current.generation == generation.get())
+			return current;
+		final long currentGeneration = generation.get();
+		final long lastModified = Files.getLastModifiedTime(controllerFile).toMillis();
+		if (current != null && !watched && current.lastModified == lastModified)
+			return current;
+		final JavascriptSource newSource = new JavascriptSource(controllerFile, lastModified, currentGeneration);
+		source = newSource;
+		return newSource;
 	}
 
 	private void handle(final HttpServletRequest req, final HttpServletResponse rep)
 			throws IOException, ServletException {
-		WebappHttpRequest request = new WebappHttpRequestImpl(req);
+		final JavascriptEngine.Instance instance;
+		try {
+			instance = scriptEnginePool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServletException(e);
+		}
+		if (instance == null) {
+			rep.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "No script engine available");
+			return;
+		}
+		try {
+			eval(instance, req, rep);
+		} finally {
+			scriptEnginePool.release(instance);
+		}
+	}
+
+	private void eval(final JavascriptEngine.Instance instance, final HttpServletRequest req,
+			final HttpServletResponse rep) throws IOException, ServletException {
+		WebappHttpRequestImpl request = new WebappHttpRequestImpl(req, rep);
 		WebappHttpResponse response = new WebappHttpResponse(rep);
 		response.setHeader("Cache-Control", "max-age=0, no-cache, no-store");
-		Bindings bindings = scriptEngine.createBindings();
-		bindings.put("console", new ScriptConsole(null));
-		bindings.put("request", request);
-		bindings.put("response", response);
-		bindings.put("library", libraryService);
-		bindings.put("closeable", req.getAttribute(CloseableFilter.ATTRIBUTE_NAME));
-		bindings.put("session", request.getSession());
-		bindings.putAll(request.getAttributes());
-		try (final BufferedReader reader = Files.newBufferedReader(controllerFile)) {
-			scriptEngine.eval(reader, bindings);
-		} catch (ScriptException e) {
-			throw new ServletException(e);
+		final Map<String, Object> variables = new LinkedHashMap<>();
+		variables.put("console", new ScriptConsole(null));
+		variables.put("request", request);
+		variables.put("response", response);
+		variables.put("library", libraryService);
+		variables.put("closeable", new CloseableFilter.Lazy(req));
+		variables.put("session", request.getLazySession());
+		variables.putAll(request.getAttributes());
+		try {
+			instance.eval(getSource(), variables);
+		} catch (ScriptException | RuntimeException e) {
+			final AbstractWebappException webappException = findWebappException(e);
+			if (webappException != null)
+				webappException.sendQuietly(rep);
+			else if (e instanceof RuntimeException)
+				throw (RuntimeException) e;
+			else
+				throw new ServletException(e);
+		}
+	}
+
+	/**
+	 * A WebappException thrown by a Java method called by the script carries the status sent to the client
+	 */
+	private static AbstractWebappException findWebappException(Throwable e) {
+		while (e != null) {
+			if (e instanceof AbstractWebappException)
+				return (AbstractWebappException) e;
+			e = e.getCause();
 		}
+		return null;
 	}
 
 	@Override
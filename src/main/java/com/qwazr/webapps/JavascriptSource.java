@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A version of a controller file. A new instance is created each time the file changes, so the engines can
+ * keep what they derived from the source (compiled script, parsed source) as long as they get the same instance.
+ */
+public final class JavascriptSource {
+
+	private final Path path;
+	final long lastModified;
+	final long generation;
+
+	JavascriptSource(final Path path, final long lastModified, final long generation) {
+		this.path = path;
+		this.lastModified = lastModified;
+		this.generation = generation;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public BufferedReader newReader() throws IOException {
+		return Files.newBufferedReader(path);
+	}
+}
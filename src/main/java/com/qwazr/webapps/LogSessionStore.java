@@ -0,0 +1,390 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import com.qwazr.utils.LoggerUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A session store backed by an append-only log file.
+ * Each write appends the new version of a session, each delete appends a tombstone. Only the position of the last
+ * version of each session is kept in memory, so opening the store does not read the attributes. The file is
+ * rewritten when most of it is made of replaced, deleted or expired sessions.
+ * A truncated last record is discarded on open, any other corruption fails the open and the file is left untouched.
+ * <p>
+ * Record layout: type (byte), ID length (short), ID (UTF-8), then for a PUT: expiration (long), attributes length
+ * (int) and the attributes (Java serialization).
+ */
+public final class LogSessionStore implements SessionStore {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(LogSessionStore.class);
+
+	private final static int MAGIC = 0x51575353;
+	private final static byte VERSION = 1;
+	private final static int HEADER_SIZE = 5;
+
+	private final static byte PUT = 1;
+	private final static byte DELETE = 2;
+
+	/**
+	 * The log is not compacted below this size
+	 */
+	final static long MIN_COMPACT_SIZE = 1024 * 1024;
+
+	private final static class Entry {
+
+		private final long position;
+		private final int length;
+		private final long expiration;
+		private final int recordSize;
+
+		private Entry(final long position, final int length, final long expiration, final int recordSize) {
+			this.position = position;
+			this.length = length;
+			this.expiration = expiration;
+			this.recordSize = recordSize;
+		}
+	}
+
+	private final Path path;
+	private final Map<String, Entry> entries;
+	private FileChannel channel;
+	private long size;
+	private long liveSize;
+
+	public LogSessionStore(final Path path) throws IOException {
+		this.path = path;
+		this.entries = new HashMap<>();
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			load();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param directory the directory of the log files, one file per deployment
+	 * @return a factory of stores
+	 */
+	public static SessionStore.Factory factory(final Path directory) {
+		try {
+			final List<Path> previousFiles = findPreviousFormat(directory);
+			if (!previousFiles.isEmpty())
+				LOGGER.warning(() -> "The sessions persisted by a previous version are not restored, " +
+						"they can be deleted: " + previousFiles);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot list the session directory: " + directory);
+		}
+		return deploymentName -> new LogSessionStore(
+				directory.resolve(deploymentName.replaceAll("[^A-Za-z0-9._-]", "_") + ".sessions"));
+	}
+
+	/**
+	 * @param directory the directory of the log files
+	 * @return the files and directories which are not session logs, as written by the previous persistence manager
+	 * @throws IOException if the directory cannot be listed
+	 */
+	static List<Path> findPreviousFormat(final Path directory) throws IOException {
+		if (!Files.isDirectory(directory))
+			return Collections.emptyList();
+		try (final Stream<Path> stream = Files.list(directory)) {
+			return stream.filter(file -> {
+				final String fileName = file.getFileName().toString();
+				return !fileName.endsWith(".sessions") && !fileName.endsWith(".sessions.compact");
+			}).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private void load() throws IOException {
+		final long fileSize = channel.size();
+		if (fileSize < HEADER_SIZE) {
+			reset();
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		long position = 0;
+		try (final DataInputStream input = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(path), 65536))) {
+			if (input.readInt() != MAGIC || input.readByte() != VERSION) {
+				LOGGER.warning(() -> "Unknown session log format, the sessions are discarded: " + path);
+				reset();
+				return;
+			}
+			position = HEADER_SIZE;
+			while (position < fileSize) {
+				final byte type = input.readByte();
+				final byte[] id = new byte[input.readUnsignedShort()];
+				input.readFully(id);
+				final String sessionId = new String(id, StandardCharsets.UTF_8);
+				int recordSize = 3 + id.length;
+				final Entry previous;
+				if (type == PUT) {
+					final long expiration = input.readLong();
+					final int length = input.readInt();
+					skipFully(input, length);
+					recordSize += 12 + length;
+					previous = expiration > now ?
+							entries.put(sessionId,
+									new Entry(position + recordSize - length, length, expiration, recordSize)) :
+							entries.remove(sessionId);
+					if (expiration > now)
+						liveSize += recordSize;
+				} else if (type == DELETE)
+					previous = entries.remove(sessionId);
+				else
+					// The length of an unknown record is unknown: the following records cannot be read
+					throw new IOException(
+							"Corrupted session log, unknown record type " + type + " at " + position + ": " + path);
+				if (previous != null)
+					liveSize -= previous.recordSize;
+				position += recordSize;
+			}
+		} catch (EOFException e) {
+			// The last record has not been fully written
+			final long lastPosition = position;
+			LOGGER.warning(() -> "Truncated session log, the last record is discarded: " + path);
+			channel.truncate(lastPosition);
+		}
+		size = channel.size();
+	}
+
+	private static void skipFully(final InputStream input, long count) throws IOException {
+		while (count > 0) {
+			final long skipped = input.skip(count);
+			if (skipped <= 0) {
+				if (input.read() == -1)
+					throw new EOFException();
+				count--;
+			} else
+				count -= skipped;
+		}
+	}
+
+	private void reset() throws IOException {
+		channel.truncate(0);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(VERSION);
+		header.flip();
+		writeFully(channel, header, 0);
+		entries.clear();
+		size = HEADER_SIZE;
+		liveSize = 0;
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	@Override
+	public synchronized Map<String, Long> index() {
+		final long now = System.currentTimeMillis();
+		final Map<String, Long> index = new LinkedHashMap<>();
+		entries.forEach((sessionId, entry) -> {
+			if (entry.expiration > now)
+				index.put(sessionId, entry.expiration);
+		});
+		return index;
+	}
+
+	@Override
+	public synchronized Map<String, Object> read(final String sessionId, final ClassLoader classLoader)
+			throws IOException {
+		final Entry entry = entries.get(sessionId);
+		if (entry == null)
+			return null;
+		if (entry.expiration <= System.currentTimeMillis()) {
+			delete(sessionId);
+			return null;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		long position = entry.position;
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+			if (read == -1)
+				throw new EOFException("Truncated session: " + sessionId);
+			position += read;
+		}
+		return deserialize(buffer.array(), classLoader);
+	}
+
+	@Override
+	public synchronized void write(final String sessionId, final long expiration,
+			final Map<String, Object> attributes) throws IOException {
+		final byte[] data = serialize(sessionId, attributes);
+		final byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer record = ByteBuffer.allocate(15 + id.length + data.length);
+		record.put(PUT).putShort((short) id.length).put(id).putLong(expiration).putInt(data.length).put(data);
+		record.flip();
+		final int recordSize = record.remaining();
+		writeFully(channel, record, size);
+		final Entry previous =
+				entries.put(sessionId, new Entry(size + recordSize - data.length, data.length, expiration, recordSize));
+		if (previous != null)
+			liveSize -= previous.recordSize;
+		liveSize += recordSize;
+		size += recordSize;
+	}
+
+	@Override
+	public synchronized void delete(final String sessionId) throws IOException {
+		final Entry previous = entries.remove(sessionId);
+		if (previous == null)
+			return;
+		liveSize -= previous.recordSize;
+		final byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer record = ByteBuffer.allocate(3 + id.length);
+		record.put(DELETE).putShort((short) id.length).put(id);
+		record.flip();
+		final int recordSize = record.remaining();
+		writeFully(channel, record, size);
+		size += recordSize;
+	}
+
+	@Override
+	public synchronized void clear() throws IOException {
+		reset();
+	}
+
+	/**
+	 * Rewrite the log with the live sessions only, if they use less than half of the file
+	 *
+	 * @throws IOException if any I/O error occurs
+	 */
+	@Override
+	public synchronized void compact() throws IOException {
+		if (size < MIN_COMPACT_SIZE || liveSize * 2 > size)
+			return;
+		final long now = System.currentTimeMillis();
+		final Path compactPath = path.resolveSibling(path.getFileName() + ".compact");
+		final Map<String, Entry> compacted = new HashMap<>();
+		long position = HEADER_SIZE;
+		try (final FileChannel output = FileChannel.open(compactPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(VERSION);
+			header.flip();
+			writeFully(output, header, 0);
+			for (final Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+				final Entry entry = mapEntry.getValue();
+				if (entry.expiration <= now)
+					continue;
+				final long recordPosition = entry.position + entry.length - entry.recordSize;
+				long transferred = 0;
+				while (transferred < entry.recordSize)
+					transferred += channel.transferTo(recordPosition + transferred, entry.recordSize - transferred,
+							output.position(position + transferred));
+				compacted.put(mapEntry.getKey(),
+						new Entry(position + entry.recordSize - entry.length, entry.length, entry.expiration,
+								entry.recordSize));
+				position += entry.recordSize;
+			}
+			output.force(true);
+		}
+		// The current channel is kept until the compacted file is in place
+		try {
+			Files.move(compactPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(compactPath);
+			throw e;
+		}
+		entries.clear();
+		entries.putAll(compacted);
+		size = position;
+		liveSize = position - HEADER_SIZE;
+		final FileChannel previousChannel = channel;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} finally {
+			previousChannel.close();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!channel.isOpen())
+			return;
+		channel.force(false);
+		channel.close();
+	}
+
+	private static byte[] serialize(final String sessionId, final Map<String, Object> attributes) throws IOException {
+		final HashMap<String, Object> serializable = new HashMap<>();
+		attributes.forEach((name, value) -> {
+			if (value instanceof Serializable)
+				serializable.put(name, value);
+			else
+				LOGGER.fine(() -> "The attribute " + name + " of the session " + sessionId +
+						" is not serializable and is not persisted");
+		});
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+			output.writeObject(serializable);
+		}
+		return bytes.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> deserialize(final byte[] data, final ClassLoader classLoader)
+			throws IOException {
+		try (final ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				if (classLoader != null) {
+					try {
+						return Class.forName(desc.getName(), false, classLoader);
+					} catch (ClassNotFoundException e) {
+						// Fall back to the default resolution (primitive types, JDK classes)
+					}
+				}
+				return super.resolveClass(desc);
+			}
+		}) {
+			return (Map<String, Object>) input.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+}
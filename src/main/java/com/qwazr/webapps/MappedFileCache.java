@@ -0,0 +1,254 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import com.qwazr.utils.LoggerUtils;
+import io.undertow.servlet.spec.ServletOutputStreamImpl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the memory mapped large static files.
+ * The same mapping is shared by the concurrent downloads of a file. A mapping is reference counted: it is
+ * released (unmapped) once it has been evicted, or invalidated by a change of the file, and no response is
+ * still using it.
+ */
+final class MappedFileCache {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(MappedFileCache.class);
+
+	/**
+	 * The maximum number of mapped files
+	 */
+	final static int MAX_COUNT = 64;
+
+	/**
+	 * A MappedByteBuffer is limited to 2GB, larger files are mapped using several chunks
+	 */
+	private final static int CHUNK_SHIFT = 30;
+	private final static long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+	private final static MethodHandle INVOKE_CLEANER = findCleaner();
+
+	/**
+	 * Unmapping a buffer is not available through a public API. If Unsafe.invokeCleaner cannot be found, the
+	 * mapping is released by the garbage collector.
+	 */
+	private static MethodHandle findCleaner() {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(theUnsafe.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.log(Level.FINE, e, () -> "Unmapping is not available, the mappings are released by the GC");
+			return null;
+		}
+	}
+
+	final static class Mapping {
+
+		final long length;
+		private final long lastModified;
+		private final MappedByteBuffer[] chunks;
+		private final AtomicInteger references;
+
+		private Mapping(final Path path, final long lastModified) throws IOException {
+			try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				this.length = channel.size();
+				this.lastModified = lastModified;
+				this.chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+				for (int i = 0; i < chunks.length; i++) {
+					final long position = (long) i << CHUNK_SHIFT;
+					chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(CHUNK_SIZE, length - position));
+				}
+			}
+			// One reference for the cache, one for the caller
+			this.references = new AtomicInteger(2);
+		}
+
+		private boolean retain() {
+			int count;
+			do {
+				count = references.get();
+				if (count == 0)
+					return false;
+			} while (!references.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		/**
+		 * Release a reference. The buffers are unmapped when the last reference is released.
+		 */
+		void release() {
+			if (references.decrementAndGet() != 0 || INVOKE_CLEANER == null)
+				return;
+			for (final MappedByteBuffer chunk : chunks) {
+				try {
+					INVOKE_CLEANER.invokeExact((ByteBuffer) chunk);
+				} catch (Throwable e) {
+					LOGGER.log(Level.WARNING, e, e::getMessage);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Write a part of the file
+		 *
+		 * @param start  the position of the first byte
+		 * @param count  the number of bytes to write
+		 * @param output the stream to write to
+		 * @throws IOException if any I/O error occurs
+		 */
+		void write(final long start, final long count, final OutputStream output) throws IOException {
+			final WritableByteChannel channel =
+					output instanceof ServletOutputStreamImpl ? null : Channels.newChannel(output);
+			long position = start;
+			final long end = start + count;
+			while (position < end) {
+				final int offset = (int) (position & (CHUNK_SIZE - 1));
+				final ByteBuffer slice = chunks[(int) (position >>> CHUNK_SHIFT)].duplicate();
+				final int size = (int) Math.min(end - position, slice.capacity() - offset);
+				slice.limit(offset + size);
+				slice.position(offset);
+				if (channel == null)
+					((ServletOutputStreamImpl) output).write(slice);
+				else
+					while (slice.hasRemaining())
+						channel.write(slice);
+				position += size;
+			}
+		}
+	}
+
+	private final LinkedHashMap<Path, Mapping> mappings;
+	private long generation;
+	private volatile boolean watched;
+
+	MappedFileCache() {
+		this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+		this.generation = 0;
+		this.watched = false;
+	}
+
+	/**
+	 * Get the mapping of a file. The caller must release the mapping once the content has been sent.
+	 *
+	 * @param path         the path of the file
+	 * @param lastModified the modification time of the file
+	 * @param length       the length of the file
+	 * @return the mapping, or null if the file changed while it was mapped
+	 * @throws IOException if any I/O error occurs
+	 */
+	Mapping acquire(final Path path, final long lastModified, final long length) throws IOException {
+		final long currentGeneration;
+		synchronized (mappings) {
+			final Mapping mapping = mappings.get(path);
+			if (mapping != null && (watched || (mapping.lastModified == lastModified && mapping.length == length)) &&
+					mapping.retain())
+				return mapping;
+			if (mapping != null) {
+				mappings.remove(path);
+				mapping.release();
+			}
+			currentGeneration = generation;
+		}
+		final Mapping mapping = new Mapping(path, lastModified);
+		if (mapping.length != length) {
+			// The file changed since its metadata has been read: release both references
+			mapping.release();
+			mapping.release();
+			return null;
+		}
+		synchronized (mappings) {
+			if (currentGeneration != generation) {
+				// The file changed in the meantime, the mapping is only used by the caller
+				mapping.release();
+				return mapping;
+			}
+			final Mapping previous = mappings.put(path, mapping);
+			if (previous != null)
+				previous.release();
+			final Iterator<Mapping> iterator = mappings.values().iterator();
+			while (mappings.size() > MAX_COUNT && iterator.hasNext()) {
+				iterator.next().release();
+				iterator.remove();
+			}
+		}
+		return mapping;
+	}
+
+	/**
+	 * Register the cache on the watcher. Once registered, the mappings are no more checked against the metadata
+	 * of the file.
+	 *
+	 * @param fileWatcher the file watcher
+	 * @param directory   the directory (or the file) served by the servlet
+	 */
+	void watch(final FileWatcher fileWatcher, final Path directory) {
+		if (fileWatcher.register(directory, this::invalidate))
+			watched = true;
+	}
+
+	/**
+	 * Release the mappings of a changed file, or of all the files below a changed directory.
+	 *
+	 * @param changed the changed path
+	 */
+	void invalidate(final Path changed) {
+		synchronized (mappings) {
+			generation++;
+			mappings.entrySet().removeIf(entry -> {
+				if (!entry.getKey().startsWith(changed))
+					return false;
+				entry.getValue().release();
+				return true;
+			});
+		}
+	}
+
+	/**
+	 * Release all the mappings
+	 */
+	void clear() {
+		synchronized (mappings) {
+			generation++;
+			mappings.values().forEach(Mapping::release);
+			mappings.clear();
+		}
+	}
+}
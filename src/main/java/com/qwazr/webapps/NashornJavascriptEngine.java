@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Javascript controllers running on the JSR-223 Nashorn engine (JDK 8 to 14).
+ * Each instance is a ScriptEngine which keeps its compiled controllers.
+ */
+public final class NashornJavascriptEngine implements JavascriptEngine {
+
+	public final static String NAME = "nashorn";
+
+	private final Supplier<ScriptEngine> scriptEngineFactory;
+
+	private final LongAdder compilations;
+
+	public NashornJavascriptEngine() {
+		final ScriptEngineManager manager = new ScriptEngineManager();
+		this.scriptEngineFactory = () -> manager.getEngineByName(NAME);
+		this.compilations = new LongAdder();
+	}
+
+	private NashornJavascriptEngine(final ScriptEngine scriptEngine) {
+		this.scriptEngineFactory = () -> scriptEngine;
+		this.compilations = new LongAdder();
+	}
+
+	/**
+	 * @param scriptEngine the script engine used by every instance
+	 * @return a new engine
+	 */
+	static NashornJavascriptEngine of(final ScriptEngine scriptEngine) {
+		return new NashornJavascriptEngine(scriptEngine);
+	}
+
+	/**
+	 * @return true if the Nashorn engine is provided by the JDK
+	 */
+	public static boolean isAvailable() {
+		return new ScriptEngineManager().getEngineFactories()
+				.stream()
+				.anyMatch(factory -> factory.getNames().contains(NAME));
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
+	@Override
+	public Instance newInstance() {
+		return new NashornInstance(
+				Objects.requireNonNull(scriptEngineFactory.get(), "The Nashorn engine is not available"),
+				compilations);
+	}
+
+	@Override
+	public long getCompilations() {
+		return compilations.sum();
+	}
+
+	private final static class Compiled {
+
+		private final JavascriptSource source;
+		private final CompiledScript script;
+
+		private Compiled(final JavascriptSource source, final CompiledScript script) {
+			this.source = source;
+			this.script = script;
+		}
+	}
+
+	private final static class NashornInstance implements Instance {
+
+		private final ScriptEngine scriptEngine;
+		private final ConcurrentHashMap<Path, Compiled> compiledScripts;
+		private final LongAdder compilations;
+
+		private NashornInstance(final ScriptEngine scriptEngine, final LongAdder compilations) {
+			this.scriptEngine = scriptEngine;
+			this.compiledScripts = new ConcurrentHashMap<>();
+			this.compilations = compilations;
+		}
+
+		/**
+		 * The script is compiled once, and compiled again only if the source changed.
+		 */
+		private CompiledScript getCompiledScript(final JavascriptSource source) throws IOException, ScriptException {
+			Compiled compiled = compiledScripts.get(source.getPath());
+			if (compiled != null && compiled.source == source)
+				return compiled.script;
+			try (final BufferedReader reader = source.newReader()) {
+				compiled = new Compiled(source, ((Compilable) scriptEngine).compile(reader));
+			}
+			compilations.increment();
+			compiledScripts.put(source.getPath(), compiled);
+			return compiled.script;
+		}
+
+		@Override
+		public void eval(final JavascriptSource source, final Map<String, Object> variables)
+				throws IOException, ScriptException {
+			final Bindings bindings = scriptEngine.createBindings();
+			bindings.putAll(variables);
+			if (scriptEngine instanceof Compilable)
+				getCompiledScript(source).eval(bindings);
+			else
+				try (final BufferedReader reader = source.newReader()) {
+					scriptEngine.eval(reader, bindings);
+				}
+		}
+	}
+}
@@ -17,38 +17,204 @@ package com.qwazr.webapps;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Rewrite the request URL using an ordered list of rules. The first rule whose pattern matches the URL is applied
+ * and the request is forwarded to the rewritten URL.
+ * <p>
+ * The rules are given either by the pattern and replace parameters (one rule), and/or by the rules parameter: one
+ * rule per line, the pattern and the replacement separated by whitespace, the lines starting with # are ignored.
+ * A rule line may end with a redirect status (301, 302 or 308): the client is then redirected to the rewritten URL
+ * instead of the request being forwarded, the query string of the request is kept. The redirect parameter sets the
+ * status of the rules which don't give one.
+ * <p>
+ * The outcome of each URL is kept in a bounded cache, so the rules are evaluated once per distinct URL.
+ */
 public class RewriteFilter implements Filter {
 
 	public static final String PARAM_PATTERN = "com.qwazr.webapps.rewrite.pattern";
 	public static final String PARAM_REPLACE = "com.qwazr.webapps.rewrite.replace";
+	public static final String PARAM_RULES = "com.qwazr.webapps.rewrite.rules";
+	public static final String PARAM_REDIRECT = "com.qwazr.webapps.rewrite.redirect";
+	public static final String PARAM_CACHE_SIZE = "com.qwazr.webapps.rewrite.cache_size";
+
+	/**
+	 * The default maximum number of cached URLs
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	/**
+	 * The outcome of the rules for an URL
+	 */
+	final static class Outcome {
+
+		final static Outcome NO_MATCH = new Outcome(null, 0);
+
+		final String target;
+		/**
+		 * The redirect status, or zero to forward
+		 */
+		final int status;
+
+		private Outcome(final String target, final int status) {
+			this.target = target;
+			this.status = status;
+		}
+	}
+
+	final static class Rule {
+
+		final Pattern pattern;
+		final String replace;
+		final int redirect;
 
-	private volatile Pattern pattern;
-	private volatile String replace;
+		/**
+		 * A literal which is part of any match, used to skip the rule without running the regular expression
+		 */
+		final String literal;
+
+		Rule(final String pattern, final String replace, final int redirect) {
+			if (redirect != 0 && redirect != 301 && redirect != 302 && redirect != 308)
+				throw new IllegalArgumentException("Unsupported redirect status: " + redirect);
+			this.pattern = Pattern.compile(pattern);
+			this.replace = replace == null ? "" : replace;
+			this.redirect = redirect;
+			this.literal = requiredLiteral(pattern);
+		}
+
+		/**
+		 * @return the rewritten URL, or null if the rule does not match
+		 */
+		String apply(final String url) {
+			if (literal != null && !url.contains(literal))
+				return null;
+			final Matcher matcher = pattern.matcher(url);
+			if (!matcher.find())
+				return null;
+			return matcher.replaceAll(replace);
+		}
+	}
+
+	private volatile Rule[] rules;
+	private volatile Map<String, Outcome> cache;
+	private volatile int cacheSize;
 
 	@Override
 	public void init(final FilterConfig filterConfig) {
-		pattern = Pattern.compile(filterConfig.getInitParameter(PARAM_PATTERN));
-		replace = filterConfig.getInitParameter(PARAM_REPLACE);
+		final String redirectParam = filterConfig.getInitParameter(PARAM_REDIRECT);
+		final int redirect = redirectParam == null ? 0 : Integer.parseInt(redirectParam.trim());
+		final List<Rule> ruleList = new ArrayList<>();
+		final String pattern = filterConfig.getInitParameter(PARAM_PATTERN);
+		if (pattern != null)
+			ruleList.add(new Rule(pattern, filterConfig.getInitParameter(PARAM_REPLACE), redirect));
+		final String rulesParam = filterConfig.getInitParameter(PARAM_RULES);
+		if (rulesParam != null)
+			ruleList.addAll(parseRules(rulesParam, redirect));
+		rules = ruleList.toArray(new Rule[0]);
+		final String cacheSizeParam = filterConfig.getInitParameter(PARAM_CACHE_SIZE);
+		cacheSize = cacheSizeParam == null ? DEFAULT_CACHE_SIZE : Integer.parseInt(cacheSizeParam.trim());
+		cache = cacheSize > 0 ? new ConcurrentHashMap<>() : null;
+	}
+
+	static List<Rule> parseRules(final String text, final int defaultRedirect) {
+		final List<Rule> ruleList = new ArrayList<>();
+		for (final String line : text.split("\\R")) {
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#"))
+				continue;
+			final String[] parts = trimmed.split("\\s+", 3);
+			ruleList.add(new Rule(parts[0], parts.length > 1 ? parts[1] : "",
+					parts.length > 2 ? Integer.parseInt(parts[2]) : defaultRedirect));
+		}
+		return ruleList;
+	}
+
+	/**
+	 * Extract the literal prefix of a regular expression (after an optional ^). Nothing is returned if the
+	 * expression contains an alternation or flags, as the prefix may then not be part of the match.
+	 *
+	 * @param regex the regular expression
+	 * @return the literal, or null if there is no usable literal
+	 */
+	static String requiredLiteral(final String regex) {
+		if (regex.contains("|") || regex.startsWith("(?"))
+			return null;
+		final StringBuilder literal = new StringBuilder();
+		int i = regex.startsWith("^") ? 1 : 0;
+		final int length = regex.length();
+		while (i < length) {
+			final char c = regex.charAt(i);
+			final int next;
+			if (c == '\\') {
+				if (i + 1 >= length || Character.isLetterOrDigit(regex.charAt(i + 1)))
+					break;
+				next = i + 2;
+			} else if ("[](){}.*+?^$".indexOf(c) != -1)
+				break;
+			else
+				next = i + 1;
+			// A quantifier makes the previous character optional or repeated
+			if (next < length && "*+?{".indexOf(regex.charAt(next)) != -1)
+				break;
+			literal.append(regex.charAt(next - 1));
+			i = next;
+		}
+		return literal.length() == 0 ? null : literal.toString();
 	}
 
 	@Override
 	final public void doFilter(final ServletRequest req, final ServletResponse rep, final FilterChain chain)
 			throws IOException, ServletException {
 		final HttpServletRequest request = (HttpServletRequest) req;
-		final Matcher matcher;
-		final StringBuffer reqUrl = request.getRequestURL();
-		synchronized (pattern) {
-			matcher = pattern.matcher(reqUrl);
-		}
-		final String newUrl = matcher.replaceAll(replace);
-		if (reqUrl.toString().equals(newUrl))
+		final Outcome outcome = getOutcome(request.getRequestURL().toString());
+		if (outcome.target == null)
 			chain.doFilter(req, rep);
-		else
-			request.getRequestDispatcher(newUrl).forward(request, rep);
+		else if (outcome.status == 0)
+			request.getRequestDispatcher(outcome.target).forward(request, rep);
+		else {
+			final HttpServletResponse response = (HttpServletResponse) rep;
+			response.setStatus(outcome.status);
+			// The outcome is cached by URL, the query string is appended to each redirect
+			final String queryString = request.getQueryString();
+			response.setHeader("Location", queryString == null || queryString.isEmpty() ?
+					outcome.target :
+					outcome.target + (outcome.target.indexOf('?') == -1 ? '?' : '&') + queryString);
+		}
+	}
+
+	private Outcome getOutcome(final String reqUrl) {
+		final Map<String, Outcome> outcomes = cache;
+		if (outcomes == null)
+			return evaluate(reqUrl);
+		Outcome outcome = outcomes.get(reqUrl);
+		if (outcome != null)
+			return outcome;
+		outcome = evaluate(reqUrl);
+		// When the cache is full, it is emptied so it adapts to the URLs currently requested
+		if (outcomes.size() >= cacheSize)
+			outcomes.clear();
+		outcomes.put(reqUrl, outcome);
+		return outcome;
+	}
+
+	Outcome evaluate(final String reqUrl) {
+		for (final Rule rule : rules) {
+			final String newUrl = rule.apply(reqUrl);
+			if (newUrl == null)
+				continue;
+			if (reqUrl.equals(newUrl))
+				break;
+			return new Outcome(newUrl, rule.redirect);
+		}
+		return Outcome.NO_MATCH;
 	}
 
 	@Override
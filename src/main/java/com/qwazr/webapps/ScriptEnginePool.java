@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The instances of the Javascript engine used by the controllers.
+ * <ul>
+ * <li>SHARED: one instance is shared by all the requests (one per thread if the engine is not thread safe).</li>
+ * <li>FIXED: at most "size" instances, a request waits for a free instance up to the checkout timeout.</li>
+ * <li>THREAD_LOCAL: one instance per worker thread. The instances of the threads which ended are closed when a
+ * new instance is created.</li>
+ * </ul>
+ * With FIXED and THREAD_LOCAL, an instance is used by one request at a time, so the global state of the scripts is
+ * not shared by concurrent requests.
+ */
+public final class ScriptEnginePool implements Closeable {
+
+	public enum Mode {
+		SHARED, FIXED, THREAD_LOCAL
+	}
+
+	public final static int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors();
+
+	public final static long DEFAULT_CHECKOUT_TIMEOUT_MS = 30000;
+
+	private final Mode mode;
+	private final int size;
+	private final long checkoutTimeoutNanos;
+	private final JavascriptEngine engine;
+
+	private final JavascriptEngine.Instance shared;
+	private final BlockingQueue<JavascriptEngine.Instance> idle;
+	private final AtomicInteger created;
+	private final ThreadLocal<JavascriptEngine.Instance> local;
+	private final Queue<JavascriptEngine.Instance> instances;
+	private final Map<Thread, JavascriptEngine.Instance> threadInstances;
+
+	private final LongAdder checkouts;
+	private final LongAdder waits;
+	private final LongAdder timeouts;
+	private final LongAdder waitTimeNanos;
+	private final AtomicLong maxWaitTimeNanos;
+	private final AtomicInteger active;
+
+	ScriptEnginePool(final Mode mode, final int size, final long checkoutTimeoutMs, final JavascriptEngine engine) {
+		this.engine = engine;
+		if (mode == null || (mode == Mode.SHARED && !engine.isThreadSafe()))
+			this.mode = engine.isThreadSafe() ? Mode.SHARED : Mode.THREAD_LOCAL;
+		else
+			this.mode = mode;
+		this.size = this.mode == Mode.FIXED ? Math.max(1, size) : 1;
+		this.checkoutTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(checkoutTimeoutMs);
+		this.instances = new ConcurrentLinkedQueue<>();
+		this.threadInstances = new ConcurrentHashMap<>();
+		this.shared = this.mode == Mode.SHARED ? newInstance() : null;
+		this.idle = this.mode == Mode.FIXED ? new ArrayBlockingQueue<>(this.size) : null;
+		this.created = new AtomicInteger();
+		this.local = this.mode == Mode.THREAD_LOCAL ? ThreadLocal.withInitial(this::newThreadInstance) : null;
+		this.checkouts = new LongAdder();
+		this.waits = new LongAdder();
+		this.timeouts = new LongAdder();
+		this.waitTimeNanos = new LongAdder();
+		this.maxWaitTimeNanos = new AtomicLong();
+		this.active = new AtomicInteger();
+	}
+
+	private JavascriptEngine.Instance newInstance() {
+		final JavascriptEngine.Instance instance = engine.newInstance();
+		instances.add(instance);
+		return instance;
+	}
+
+	/**
+	 * Create the instance of the current thread, and close the instances of the threads which ended
+	 */
+	private JavascriptEngine.Instance newThreadInstance() {
+		threadInstances.entrySet().removeIf(entry -> {
+			if (entry.getKey().isAlive())
+				return false;
+			entry.getValue().close();
+			return true;
+		});
+		final JavascriptEngine.Instance instance = engine.newInstance();
+		threadInstances.put(Thread.currentThread(), instance);
+		return instance;
+	}
+
+	/**
+	 * @return the number of instances currently open
+	 */
+	public int getInstances() {
+		return instances.size() + threadInstances.size();
+	}
+
+	/**
+	 * Get an instance. The instance must be given back using {@link #release(JavascriptEngine.Instance)}.
+	 *
+	 * @return an instance, or null if no instance was available before the checkout timeout
+	 * @throws InterruptedException if the thread has been interrupted while waiting
+	 */
+	JavascriptEngine.Instance acquire() throws InterruptedException {
+		checkouts.increment();
+		final JavascriptEngine.Instance instance;
+		switch (mode) {
+		case FIXED:
+			instance = checkout();
+			break;
+		case THREAD_LOCAL:
+			instance = local.get();
+			break;
+		default:
+			instance = shared;
+			break;
+		}
+		if (instance != null)
+			active.incrementAndGet();
+		return instance;
+	}
+
+	private JavascriptEngine.Instance checkout() throws InterruptedException {
+		final JavascriptEngine.Instance instance = idle.poll();
+		if (instance != null)
+			return instance;
+		int count;
+		while ((count = created.get()) < size) {
+			if (created.compareAndSet(count, count + 1)) {
+				try {
+					return newInstance();
+				} catch (RuntimeException | Error e) {
+					// The slot is given back, a later checkout may create the instance
+					created.decrementAndGet();
+					throw e;
+				}
+			}
+		}
+		// The pool is saturated
+		waits.increment();
+		final long start = System.nanoTime();
+		final JavascriptEngine.Instance waited = idle.poll(checkoutTimeoutNanos, TimeUnit.NANOSECONDS);
+		final long waitTime = System.nanoTime() - start;
+		waitTimeNanos.add(waitTime);
+		maxWaitTimeNanos.accumulateAndGet(waitTime, Math::max);
+		if (waited == null)
+			timeouts.increment();
+		return waited;
+	}
+
+	void release(final JavascriptEngine.Instance instance) {
+		active.decrementAndGet();
+		if (mode == Mode.FIXED)
+			idle.offer(instance);
+	}
+
+	/**
+	 * @return the name of the Javascript engine
+	 */
+	public String getEngineName() {
+		return engine.getName();
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the maximum number of engines (FIXED mode)
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of engines currently used by a request
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * @return the total number of checkouts
+	 */
+	public long getCheckouts() {
+		return checkouts.sum();
+	}
+
+	/**
+	 * @return the number of times a controller has been compiled by the engine
+	 */
+	public long getCompilations() {
+		return engine.getCompilations();
+	}
+
+	/**
+	 * @return the number of checkouts which had to wait because all the engines were used (FIXED mode)
+	 */
+	public long getSaturations() {
+		return waits.sum();
+	}
+
+	/**
+	 * @return the number of checkouts which failed because no engine was released before the timeout
+	 */
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return the cumulated time spent waiting for an engine in milliseconds
+	 */
+	public long getTotalWaitTimeMs() {
+		return TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.sum());
+	}
+
+	/**
+	 * @return the longest time spent waiting for an engine in milliseconds
+	 */
+	public long getMaxWaitTimeMs() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitTimeNanos.get());
+	}
+
+	@Override
+	public void close() {
+		JavascriptEngine.Instance instance;
+		while ((instance = instances.poll()) != null)
+			instance.close();
+		threadInstances.values().forEach(JavascriptEngine.Instance::close);
+		threadInstances.clear();
+		engine.close();
+	}
+}
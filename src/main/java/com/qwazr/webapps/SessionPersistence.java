@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import com.qwazr.utils.LoggerUtils;
+import io.undertow.servlet.api.SessionPersistenceManager;
+import io.undertow.servlet.spec.ServletContextImpl;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionIdListener;
+import javax.servlet.http.HttpSessionListener;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persist the sessions incrementally using a {@link SessionStore}.
+ * <ul>
+ * <li>The sessions whose attributes changed are written in the background.</li>
+ * <li>At startup, only the IDs of the stored sessions are loaded. The attributes of a session are read when a
+ * request asks for it.</li>
+ * <li>At shutdown, only the sessions accessed since they were last written are written.</li>
+ * </ul>
+ */
+final class SessionPersistence implements SessionPersistenceManager, HttpSessionListener,
+		HttpSessionAttributeListener, HttpSessionIdListener, Closeable {
+
+	private final static Logger LOGGER = LoggerUtils.getLogger(SessionPersistence.class);
+
+	/**
+	 * The default interval between two writes of the changed sessions
+	 */
+	final static long DEFAULT_FLUSH_INTERVAL_MS = 5000;
+
+	private final static class Deployment {
+
+		private final String name;
+		private final SessionStore store;
+		/**
+		 * The expiration time of the stored version of each session
+		 */
+		private final Map<String, Long> stored;
+		private final Map<String, HttpSession> dirty;
+		private final Set<String> deleted;
+		private volatile boolean stopped;
+
+		private Deployment(final String name, final SessionStore store) throws IOException {
+			this.name = name;
+			this.store = store;
+			this.stored = new ConcurrentHashMap<>(store.index());
+			this.dirty = new ConcurrentHashMap<>();
+			this.deleted = ConcurrentHashMap.newKeySet();
+		}
+
+		private void write(final String sessionId, final long expiration, final Map<String, Object> attributes) {
+			try {
+				store.write(sessionId, expiration, attributes);
+				stored.put(sessionId, expiration);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot persist the session " + sessionId + " of " + name);
+			}
+		}
+
+		private synchronized void flush() {
+			final Iterator<Map.Entry<String, HttpSession>> iterator = dirty.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Map.Entry<String, HttpSession> entry = iterator.next();
+				iterator.remove();
+				final HttpSession session = entry.getValue();
+				final Map<String, Object> attributes = new HashMap<>();
+				final long expiration;
+				try {
+					expiration = expiration(session.getLastAccessedTime(), session.getMaxInactiveInterval());
+					final Enumeration<String> names = session.getAttributeNames();
+					while (names.hasMoreElements()) {
+						final String attributeName = names.nextElement();
+						attributes.put(attributeName, session.getAttribute(attributeName));
+					}
+				} catch (IllegalStateException e) {
+					// The session has been invalidated in the meantime
+					continue;
+				}
+				write(entry.getKey(), expiration, attributes);
+			}
+			final Iterator<String> deletedIterator = deleted.iterator();
+			while (deletedIterator.hasNext()) {
+				final String sessionId = deletedIterator.next();
+				deletedIterator.remove();
+				stored.remove(sessionId);
+				try {
+					store.delete(sessionId);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, e, () -> "Cannot delete the session " + sessionId + " of " + name);
+				}
+			}
+			try {
+				store.compact();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot compact the sessions of " + name);
+			}
+		}
+
+		private synchronized void close() {
+			stopped = true;
+			try {
+				store.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, e::getMessage);
+			}
+		}
+	}
+
+	/**
+	 * A restored session whose attributes are read from the store on first use
+	 */
+	private final static class LazySession extends PersistentSession {
+
+		private final Deployment deployment;
+		private final String sessionId;
+		private final ClassLoader classLoader;
+
+		private LazySession(final Deployment deployment, final String sessionId, final long expiration,
+				final ClassLoader classLoader) {
+			super(new Date(expiration), null);
+			this.deployment = deployment;
+			this.sessionId = sessionId;
+			this.classLoader = classLoader;
+		}
+
+		@Override
+		public Map<String, Object> getSessionData() {
+			try {
+				final Map<String, Object> attributes = deployment.store.read(sessionId, classLoader);
+				// The restored session is written again once its attributes are set
+				deployment.deleted.add(sessionId);
+				return attributes == null ? Collections.emptyMap() : attributes;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot restore the session " + sessionId);
+				return Collections.emptyMap();
+			}
+		}
+	}
+
+	private final SessionStore.Factory storeFactory;
+	private final Map<String, Deployment> deployments;
+	private final ScheduledExecutorService executor;
+
+	SessionPersistence(final SessionStore.Factory storeFactory, final long flushIntervalMs) {
+		this.storeFactory = storeFactory;
+		this.deployments = new ConcurrentHashMap<>();
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "webapp-session-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	private static long expiration(final long lastAccessedTime, final int maxInactiveInterval) {
+		return maxInactiveInterval <= 0 ? Long.MAX_VALUE : lastAccessedTime + maxInactiveInterval * 1000L;
+	}
+
+	private void flush() {
+		for (final Deployment deployment : deployments.values()) {
+			try {
+				if (!deployment.stopped)
+					deployment.flush();
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Session persistence failure: " + deployment.name);
+			}
+		}
+	}
+
+	private Deployment open(final String deploymentName) throws IOException {
+		final Deployment deployment = new Deployment(deploymentName, storeFactory.open(deploymentName));
+		final Deployment previous = deployments.put(deploymentName, deployment);
+		if (previous != null)
+			previous.close();
+		return deployment;
+	}
+
+	@Override
+	public Map<String, PersistentSession> loadSessionAttributes(final String deploymentName,
+			final ClassLoader classLoader) {
+		final Deployment deployment;
+		try {
+			deployment = open(deploymentName);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot load the sessions of " + deploymentName);
+			return null;
+		}
+		final Map<String, PersistentSession> sessions = new HashMap<>();
+		deployment.stored.forEach((sessionId, expiration) -> sessions.put(sessionId,
+				new LazySession(deployment, sessionId, expiration, classLoader)));
+		return sessions;
+	}
+
+	@Override
+	public void persistSessions(final String deploymentName, final Map<String, PersistentSession> sessionData) {
+		Deployment deployment = deployments.get(deploymentName);
+		try {
+			if (deployment == null)
+				deployment = open(deploymentName);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, e, () -> "Cannot persist the sessions of " + deploymentName);
+			return;
+		}
+		synchronized (deployment) {
+			// The sessions destroyed by the undeployment must not be deleted
+			deployment.stopped = true;
+			deployment.flush();
+			for (final Map.Entry<String, PersistentSession> entry : sessionData.entrySet()) {
+				final long expiration = entry.getValue().getExpiration().getTime();
+				final Long storedExpiration = deployment.stored.get(entry.getKey());
+				// Not accessed since it has been written
+				if (storedExpiration != null && storedExpiration == expiration)
+					continue;
+				deployment.write(entry.getKey(), expiration, entry.getValue().getSessionData());
+			}
+			deployments.remove(deploymentName, deployment);
+			deployment.close();
+		}
+	}
+
+	@Override
+	public void clear(final String deploymentName) {
+		final Deployment deployment = deployments.get(deploymentName);
+		if (deployment == null)
+			return;
+		synchronized (deployment) {
+			try {
+				deployment.store.clear();
+				deployment.stored.clear();
+				deployment.dirty.clear();
+				deployment.deleted.clear();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, e, () -> "Cannot clear the sessions of " + deploymentName);
+			}
+		}
+	}
+
+	private Deployment getDeployment(final HttpSession session) {
+		final ServletContext servletContext = session.getServletContext();
+		if (!(servletContext instanceof ServletContextImpl))
+			return null;
+		final Deployment deployment = deployments.get(
+				((ServletContextImpl) servletContext).getDeployment().getDeploymentInfo().getDeploymentName());
+		return deployment == null || deployment.stopped ? null : deployment;
+	}
+
+	private void changed(final HttpSession session) {
+		final Deployment deployment = getDeployment(session);
+		if (deployment == null)
+			return;
+		final String sessionId = session.getId();
+		deployment.deleted.remove(sessionId);
+		deployment.dirty.put(sessionId, session);
+	}
+
+	@Override
+	public void sessionCreated(final HttpSessionEvent event) {
+		// An empty session is written once it has attributes
+	}
+
+	@Override
+	public void sessionDestroyed(final HttpSessionEvent event) {
+		final HttpSession session = event.getSession();
+		final Deployment deployment = getDeployment(session);
+		if (deployment == null)
+			return;
+		deployment.dirty.remove(session.getId());
+		deployment.deleted.add(session.getId());
+	}
+
+	@Override
+	public void sessionIdChanged(final HttpSessionEvent event, final String oldSessionId) {
+		final HttpSession session = event.getSession();
+		final Deployment deployment = getDeployment(session);
+		if (deployment == null)
+			return;
+		deployment.dirty.remove(oldSessionId);
+		deployment.deleted.add(oldSessionId);
+		changed(session);
+	}
+
+	@Override
+	public void attributeAdded(final HttpSessionBindingEvent event) {
+		changed(event.getSession());
+	}
+
+	@Override
+	public void attributeRemoved(final HttpSessionBindingEvent event) {
+		changed(event.getSession());
+	}
+
+	@Override
+	public void attributeReplaced(final HttpSessionBindingEvent event) {
+		changed(event.getSession());
+	}
+
+	/**
+	 * Write the pending changes and close the stores
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		for (final Deployment deployment : deployments.values()) {
+			if (!deployment.stopped)
+				deployment.flush();
+			deployment.close();
+		}
+		deployments.clear();
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The storage of the persisted sessions of a deployment.
+ * The sessions are written while the server is running, and restored one by one when a request asks for them.
+ */
+public interface SessionStore extends Closeable {
+
+	@FunctionalInterface
+	interface Factory {
+
+		/**
+		 * @param deploymentName the name of the deployment
+		 * @return the store of the sessions of the deployment
+		 * @throws IOException if the store cannot be opened
+		 */
+		SessionStore open(String deploymentName) throws IOException;
+	}
+
+	/**
+	 * @return the IDs of the stored sessions and their expiration time (in milliseconds). The attributes are not
+	 * read.
+	 * @throws IOException if any I/O error occurs
+	 */
+	Map<String, Long> index() throws IOException;
+
+	/**
+	 * @param sessionId   the ID of the session
+	 * @param classLoader the class loader used to read the attributes
+	 * @return the attributes of the session, or null if the session is not stored or expired
+	 * @throws IOException if any I/O error occurs
+	 */
+	Map<String, Object> read(String sessionId, ClassLoader classLoader) throws IOException;
+
+	/**
+	 * Store a session, replacing any previous version
+	 *
+	 * @param sessionId  the ID of the session
+	 * @param expiration the expiration time in milliseconds
+	 * @param attributes the serializable attributes of the session
+	 * @throws IOException if any I/O error occurs
+	 */
+	void write(String sessionId, long expiration, Map<String, Object> attributes) throws IOException;
+
+	void delete(String sessionId) throws IOException;
+
+	void clear() throws IOException;
+
+	/**
+	 * Called periodically to let the store reclaim the space used by the replaced or deleted sessions
+	 *
+	 * @throws IOException if any I/O error occurs
+	 */
+	default void compact() throws IOException {
+	}
+}
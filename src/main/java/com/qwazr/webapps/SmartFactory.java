@@ -16,53 +16,170 @@
 package com.qwazr.webapps;
 
 import com.qwazr.library.LibraryServiceInterface;
+import com.qwazr.library.annotations.Library;
 import com.qwazr.server.GenericFactory;
 import com.qwazr.server.ServerException;
 import com.qwazr.utils.reflection.ConstructorParametersImpl;
 import com.qwazr.utils.reflection.InstanceFactory;
 import io.undertow.servlet.util.ImmediateInstanceHandle;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Objects;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
 
 class SmartFactory<T> implements GenericFactory<T> {
 
 	private final ConstructorParametersImpl constructorParameters;
 	private final Class<T> clazz;
+	private volatile InstanceFactory<T> instanceFactory;
 
 	private SmartFactory(final ConstructorParametersImpl constructorParameters, final Class<T> clazz) {
 		this.constructorParameters = constructorParameters;
 		this.clazz = clazz;
 	}
 
+	private InstanceFactory<T> resolve() throws NoSuchMethodException {
+		final InstanceFactory<T> factory = constructorParameters.findBestMatchingConstructor(clazz);
+		if (factory == null)
+			throw new ServerException("No matching constructor found for class: " + clazz);
+		return factory;
+	}
+
+	/**
+	 * Resolve the best matching constructor with the constructor parameters registered so far, and keep it.
+	 * Called when the webapp is built: the parameters registered later are ignored.
+	 */
+	void freeze() {
+		try {
+			instanceFactory = resolve();
+		} catch (NoSuchMethodException e) {
+			throw ServerException.of(e);
+		}
+	}
+
+	/**
+	 * Until the factory is frozen, the constructor is resolved for each instance, so it follows the changes of the
+	 * constructor parameters.
+	 */
+	private InstanceFactory<T> getInstanceFactory() throws NoSuchMethodException {
+		final InstanceFactory<T> factory = instanceFactory;
+		return factory != null ? factory : resolve();
+	}
+
 	@Override
 	public ImmediateInstanceHandle<T> createInstance() throws InstantiationException {
 		final T instance;
 		try {
-			final InstanceFactory<T> instanceFactory =
-					Objects.requireNonNull(constructorParameters.findBestMatchingConstructor(clazz),
-							() -> "No matching constructor found for class: " + clazz);
-			instance = instanceFactory.newInstance();
+			instance = getInstanceFactory().newInstance();
 		} catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
 			throw ServerException.of(e);
 		}
 		return new ImmediateInstanceHandle<>(instance);
 	}
 
+	/**
+	 * The @Library fields of a class, with their setters. The plan is built once per class.
+	 * A library which is not found leaves the field unchanged, a library which does not match the type of the field
+	 * is rejected.
+	 */
+	final static class InjectionPlan {
+
+		private final static MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+		private final static ClassValue<InjectionPlan> PLANS = new ClassValue<>() {
+			@Override
+			protected InjectionPlan computeValue(final Class<?> type) {
+				return new InjectionPlan(type);
+			}
+		};
+
+		private final String[] names;
+		private final Field[] fields;
+		private final MethodHandle[] setters;
+		/**
+		 * False if a field cannot be set using a method handle, the library service is then used
+		 */
+		private final boolean resolved;
+
+		private InjectionPlan(final Class<?> type) {
+			final List<String> nameList = new ArrayList<>();
+			final List<Field> fieldList = new ArrayList<>();
+			final List<MethodHandle> setterList = new ArrayList<>();
+			boolean ok = true;
+			for (Class<?> current = type; current != null && current != Object.class;
+					current = current.getSuperclass()) {
+				for (final Field field : current.getDeclaredFields()) {
+					final Library library = field.getAnnotation(Library.class);
+					if (library == null || Modifier.isStatic(field.getModifiers()))
+						continue;
+					try {
+						// A final field cannot be set through a VarHandle, the setter of the accessible field can
+						field.setAccessible(true);
+						setterList.add(MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE));
+						nameList.add(library.value());
+						fieldList.add(field);
+					} catch (IllegalAccessException | RuntimeException e) {
+						ok = false;
+					}
+				}
+			}
+			this.names = nameList.toArray(new String[0]);
+			this.fields = fieldList.toArray(new Field[0]);
+			this.setters = setterList.toArray(new MethodHandle[0]);
+			this.resolved = ok;
+		}
+
+		static InjectionPlan of(final Class<?> type) {
+			return PLANS.get(type);
+		}
+
+		void inject(final LibraryServiceInterface libraryService, final Object instance) {
+			if (!resolved) {
+				libraryService.inject(instance);
+				return;
+			}
+			for (int i = 0; i < setters.length; i++) {
+				final Object library = libraryService.getLibrary(names[i]);
+				if (library == null)
+					continue;
+				final Field field = fields[i];
+				if (!field.getType().isInstance(library))
+					throw new ServerException(
+							"The library " + names[i] + " (" + library.getClass().getName() + ") cannot be injected in "
+									+ field.getDeclaringClass().getName() + '.' + field.getName() + " ("
+									+ field.getType().getName() + ')');
+				try {
+					setters[i].invokeExact(instance, library);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw ServerException.of(new InvocationTargetException(e));
+				}
+			}
+		}
+	}
+
 	final static class WithLibrary<T> extends SmartFactory<T> {
 
 		private final LibraryServiceInterface libraryService;
+		private final InjectionPlan injectionPlan;
 
 		private WithLibrary(final LibraryServiceInterface libraryService,
 				final ConstructorParametersImpl constructorParameters, final Class<T> clazz) {
 			super(constructorParameters, clazz);
 			this.libraryService = libraryService;
+			this.injectionPlan = InjectionPlan.of(clazz);
 		}
 
 		@Override
 		public ImmediateInstanceHandle<T> createInstance() throws InstantiationException {
 			final ImmediateInstanceHandle<T> result = super.createInstance();
-			libraryService.inject(result.getInstance());
+			injectionPlan.inject(libraryService, result.getInstance());
 			return result;
 		}
 	}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The definition of a static entry.
+ * In the JSON configuration, a static entry can be given either as a simple path:
+ * <pre>"/css/*": "css"</pre>
+ * or as an object which carries the serving options:
+ * <pre>"/css/*": { "path": "css", "sendfile_threshold": 65536, "precompressed": true }</pre>
+ * A definition which only carries the path is written back as a simple path.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StaticDefinition {
+
+	/**
+	 * Files larger than this size (in bytes) are transferred using the zero-copy path
+	 */
+	public final static long DEFAULT_SENDFILE_THRESHOLD = 65536;
+
+	/**
+	 * Files larger than this size (in bytes) are not kept in the in-memory cache
+	 */
+	public final static long DEFAULT_CACHE_MAX_FILE_SIZE = 65536;
+
+	/**
+	 * The default maximum number of files kept in the in-memory cache
+	 */
+	public final static int DEFAULT_CACHE_MAX_COUNT = 1024;
+
+	public final String path;
+	public final Long sendfile_threshold;
+	public final Boolean precompressed;
+	public final Boolean compression;
+	public final Long cache_max_size;
+	public final Long cache_max_file_size;
+	public final Integer cache_max_count;
+	public final Boolean cache_direct;
+	public final Long mmap_threshold;
+
+	public StaticDefinition() {
+		path = null;
+		sendfile_threshold = null;
+		precompressed = null;
+		compression = null;
+		cache_max_size = null;
+		cache_max_file_size = null;
+		cache_max_count = null;
+		cache_direct = null;
+		mmap_threshold = null;
+	}
+
+	private StaticDefinition(final Builder builder) {
+		this.path = builder.path;
+		this.sendfile_threshold = builder.sendfileThreshold;
+		this.precompressed = builder.precompressed;
+		this.compression = builder.compression;
+		this.cache_max_size = builder.cacheMaxSize;
+		this.cache_max_file_size = builder.cacheMaxFileSize;
+		this.cache_max_count = builder.cacheMaxCount;
+		this.cache_direct = builder.cacheDirect;
+		this.mmap_threshold = builder.mmapThreshold;
+	}
+
+	@JsonCreator
+	public static StaticDefinition of(final String staticPath) {
+		return of().path(staticPath).build();
+	}
+
+	public static Builder of() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the size above which a file is sent using the zero-copy path. A negative value disables it.
+	 */
+	@JsonIgnore
+	public long getSendfileThreshold() {
+		return sendfile_threshold == null ? DEFAULT_SENDFILE_THRESHOLD : sendfile_threshold;
+	}
+
+	/**
+	 * @return true if precompressed siblings (foo.js.br, foo.js.gz) can be served in place of the file
+	 */
+	@JsonIgnore
+	public boolean isPrecompressed() {
+		return precompressed != null && precompressed;
+	}
+
+	/**
+	 * @return true if the compressible content can be compressed on the fly (the result is cached)
+	 */
+	@JsonIgnore
+	public boolean isCompression() {
+		return compression != null && compression;
+	}
+
+	/**
+	 * @return the maximum size (in bytes) of the in-memory cache. Zero (the default) disables the cache.
+	 */
+	@JsonIgnore
+	public long getCacheMaxSize() {
+		return cache_max_size == null ? 0 : cache_max_size;
+	}
+
+	@JsonIgnore
+	public long getCacheMaxFileSize() {
+		return cache_max_file_size == null ? DEFAULT_CACHE_MAX_FILE_SIZE : cache_max_file_size;
+	}
+
+	@JsonIgnore
+	public int getCacheMaxCount() {
+		return cache_max_count == null ? DEFAULT_CACHE_MAX_COUNT : cache_max_count;
+	}
+
+	/**
+	 * @return true if the cached content is stored off-heap (direct buffers)
+	 */
+	@JsonIgnore
+	public boolean isCacheDirect() {
+		return cache_direct != null && cache_direct;
+	}
+
+	/**
+	 * @return the size above which a file is served from a shared memory mapping. A negative value (the default)
+	 * disables the memory mapped mode.
+	 */
+	@JsonIgnore
+	public long getMmapThreshold() {
+		return mmap_threshold == null ? -1 : mmap_threshold;
+	}
+
+	/**
+	 * @return the path alone if no option is set, otherwise the options by name
+	 */
+	@JsonValue
+	public Object toJson() {
+		if (sendfile_threshold == null && precompressed == null && compression == null && cache_max_size == null &&
+				cache_max_file_size == null && cache_max_count == null && cache_direct == null &&
+				mmap_threshold == null && path != null)
+			return path;
+		final Map<String, Object> map = new LinkedHashMap<>();
+		putIfNotNull(map, "path", path);
+		putIfNotNull(map, "sendfile_threshold", sendfile_threshold);
+		putIfNotNull(map, "precompressed", precompressed);
+		putIfNotNull(map, "compression", compression);
+		putIfNotNull(map, "cache_max_size", cache_max_size);
+		putIfNotNull(map, "cache_max_file_size", cache_max_file_size);
+		putIfNotNull(map, "cache_max_count", cache_max_count);
+		putIfNotNull(map, "cache_direct", cache_direct);
+		putIfNotNull(map, "mmap_threshold", mmap_threshold);
+		return map;
+	}
+
+	private static void putIfNotNull(final Map<String, Object> map, final String name, final Object value) {
+		if (value != null)
+			map.put(name, value);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof StaticDefinition))
+			return false;
+		final StaticDefinition s = (StaticDefinition) o;
+		return Objects.equals(path, s.path) && Objects.equals(sendfile_threshold, s.sendfile_threshold) &&
+				Objects.equals(precompressed, s.precompressed) && Objects.equals(compression, s.compression) &&
+				Objects.equals(cache_max_size, s.cache_max_size) &&
+				Objects.equals(cache_max_file_size, s.cache_max_file_size) &&
+				Objects.equals(cache_max_count, s.cache_max_count) && Objects.equals(cache_direct, s.cache_direct) &&
+				Objects.equals(mmap_threshold, s.mmap_threshold);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(path, sendfile_threshold, precompressed, compression, cache_max_size,
+				cache_max_file_size, cache_max_count, cache_direct, mmap_threshold);
+	}
+
+	public final static StaticDefinition EMPTY = new StaticDefinition();
+
+	public static class Builder {
+
+		private String path;
+		private Long sendfileThreshold;
+		private Boolean precompressed;
+		private Boolean compression;
+		private Long cacheMaxSize;
+		private Long cacheMaxFileSize;
+		private Integer cacheMaxCount;
+		private Boolean cacheDirect;
+		private Long mmapThreshold;
+
+		private Builder() {
+		}
+
+		public Builder path(final String path) {
+			this.path = path;
+			return this;
+		}
+
+		public Builder sendfileThreshold(final Long sendfileThreshold) {
+			this.sendfileThreshold = sendfileThreshold;
+			return this;
+		}
+
+		public Builder precompressed(final Boolean precompressed) {
+			this.precompressed = precompressed;
+			return this;
+		}
+
+		public Builder compression(final Boolean compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		public Builder cacheMaxSize(final Long cacheMaxSize) {
+			this.cacheMaxSize = cacheMaxSize;
+			return this;
+		}
+
+		public Builder cacheMaxFileSize(final Long cacheMaxFileSize) {
+			this.cacheMaxFileSize = cacheMaxFileSize;
+			return this;
+		}
+
+		public Builder cacheMaxCount(final Integer cacheMaxCount) {
+			this.cacheMaxCount = cacheMaxCount;
+			return this;
+		}
+
+		public Builder cacheDirect(final Boolean cacheDirect) {
+			this.cacheDirect = cacheDirect;
+			return this;
+		}
+
+		public Builder mmapThreshold(final Long mmapThreshold) {
+			this.mmapThreshold = mmapThreshold;
+			return this;
+		}
+
+		public StaticDefinition build() {
+			return new StaticDefinition(this);
+		}
+	}
+}
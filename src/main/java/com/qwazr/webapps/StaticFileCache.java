@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory cache of the small and frequently requested static files.
+ * An entry holds the precomputed headers (type, length, ETag) and, if the file is small enough, the content.
+ * The cache is bounded by the total size of the content and by the number of entries, the least recently used
+ * entries are evicted first.
+ * When the directory is watched, the entries stay valid until a change is notified, otherwise they are checked
+ * against the modification time of the file.
+ * <p>
+ * A lookup takes no lock: the entries are in a concurrent map and each entry records the time of its last access.
+ * The changes (put, remove, invalidation) are serialized. When the cache is full, the least recently used entries
+ * are evicted in a batch, so the cost of sorting the entries is shared by several insertions.
+ */
+public final class StaticFileCache {
+
+	final static class Entry {
+
+		final String type;
+		final long length;
+		final long lastModified;
+		final String etag;
+		private final ByteBuffer content;
+		private volatile long lastAccess;
+
+		private Entry(final String type, final long length, final long lastModified, final String etag,
+				final ByteBuffer content) {
+			this.type = type;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.content = content;
+			this.lastAccess = System.nanoTime();
+		}
+
+		/**
+		 * @return false if only the metadata of the file are cached
+		 */
+		boolean hasContent() {
+			return content != null;
+		}
+
+		private long size() {
+			return content == null ? 0 : length;
+		}
+
+		/**
+		 * Write a part of the content
+		 *
+		 * @param start  the position of the first byte
+		 * @param count  the number of bytes to write
+		 * @param output the stream to write to
+		 * @throws IOException if any I/O error occurs
+		 */
+		void write(final long start, final long count, final OutputStream output) throws IOException {
+			if (content.hasArray()) {
+				output.write(content.array(), content.arrayOffset() + (int) start, (int) count);
+				return;
+			}
+			final ByteBuffer slice = content.duplicate();
+			slice.limit((int) (start + count));
+			slice.position((int) start);
+			Channels.newChannel(output).write(slice);
+		}
+	}
+
+	private final long maxSize;
+	private final long maxFileSize;
+	private final int maxCount;
+	private final boolean direct;
+
+	private final ConcurrentHashMap<Path, Entry> entries;
+	private final Object lock;
+	private long size;
+	private volatile long generation;
+	private volatile boolean watched;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	StaticFileCache(final long maxSize, final long maxFileSize, final int maxCount, final boolean direct) {
+		this.maxSize = maxSize;
+		this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+		this.maxCount = maxCount;
+		this.direct = direct;
+		this.entries = new ConcurrentHashMap<>();
+		this.lock = new Object();
+		this.size = 0;
+		this.generation = 0;
+		this.watched = false;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * Find a valid entry. An entry is valid as long as no change has been notified for the file or, if the
+	 * directory is not watched, as long as the modification time of the file did not change.
+	 *
+	 * @param path the path of the file
+	 * @return the entry or null if the file is not cached
+	 */
+	Entry get(final Path path) {
+		final Entry entry = entries.get(path);
+		if (entry != null && (watched || entry.lastModified == path.toFile().lastModified())) {
+			entry.lastAccess = System.nanoTime();
+			hits.increment();
+			return entry;
+		}
+		if (entry != null)
+			remove(path, entry);
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * @param length the length of a file
+	 * @return true if a file of this length can be cached
+	 */
+	boolean accept(final long length) {
+		return length <= maxFileSize && length <= maxSize;
+	}
+
+	/**
+	 * The generation changes each time a change is notified. It must be read before reading the metadata of a
+	 * file, so that an entry built from a file which changed in the meantime is not cached.
+	 *
+	 * @return the current generation
+	 */
+	long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Put a file in the cache. The content is loaded if a channel is given, otherwise only the metadata are
+	 * cached.
+	 *
+	 * @param path         the path of the file
+	 * @param type         the content type
+	 * @param length       the length of the file
+	 * @param lastModified the modification time of the file
+	 * @param etag         the ETag of the file
+	 * @param channel      an open channel on the file, or null
+	 * @param generation   the generation read before the metadata of the file
+	 * @return the new entry
+	 * @throws IOException if any I/O error occurs
+	 */
+	Entry put(final Path path, final String type, final long length, final long lastModified, final String etag,
+			final FileChannel channel, final long generation) throws IOException {
+		final ByteBuffer content;
+		if (channel != null) {
+			content = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+			while (content.hasRemaining())
+				if (channel.read(content, content.position()) < 0)
+					throw new EOFException("Unexpected end of file: " + path);
+			content.flip();
+		} else
+			content = null;
+		final Entry entry = new Entry(type, length, lastModified, etag, content);
+		synchronized (lock) {
+			if (generation != this.generation)
+				return entry;
+			final Entry previous = entries.put(path, entry);
+			if (previous != null)
+				size -= previous.size();
+			size += entry.size();
+			if (size > maxSize || entries.size() > maxCount)
+				evict();
+		}
+		return entry;
+	}
+
+	/**
+	 * Evict the least recently used entries, until the cache is 1/8 below its bounds
+	 */
+	private void evict() {
+		final long targetSize = maxSize - maxSize / 8;
+		final int targetCount = maxCount - maxCount / 8;
+		final List<Map.Entry<Path, Entry>> candidates = new ArrayList<>(entries.entrySet());
+		candidates.sort(Comparator.comparingLong(mapEntry -> mapEntry.getValue().lastAccess));
+		for (final Map.Entry<Path, Entry> candidate : candidates) {
+			if (size <= targetSize && entries.size() <= targetCount)
+				break;
+			if (entries.remove(candidate.getKey(), candidate.getValue()))
+				size -= candidate.getValue().size();
+		}
+	}
+
+	void remove(final Path path) {
+		synchronized (lock) {
+			final Entry entry = entries.remove(path);
+			if (entry != null)
+				size -= entry.size();
+		}
+	}
+
+	private void remove(final Path path, final Entry entry) {
+		synchronized (lock) {
+			if (entries.remove(path, entry))
+				size -= entry.size();
+		}
+	}
+
+	/**
+	 * Register the cache on the watcher. Once registered, the entries are no more checked against the file system.
+	 *
+	 * @param fileWatcher the file watcher
+	 * @param directory   the directory (or the file) served by the servlet
+	 */
+	void watch(final FileWatcher fileWatcher, final Path directory) {
+		if (fileWatcher.register(directory, this::invalidate))
+			watched = true;
+	}
+
+	/**
+	 * Remove the entries of a changed file, or of all the files below a changed directory.
+	 *
+	 * @param changed the changed path
+	 */
+	void invalidate(final Path changed) {
+		synchronized (lock) {
+			generation++;
+			entries.entrySet().removeIf(mapEntry -> {
+				if (!mapEntry.getKey().startsWith(changed))
+					return false;
+				size -= mapEntry.getValue().size();
+				return true;
+			});
+		}
+	}
+
+	/**
+	 * @return the number of requests served from the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of requests which did not find a valid entry
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the total size of the cached content in bytes
+	 */
+	public long getSize() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	/**
+	 * @return the number of cached files
+	 */
+	public int getCount() {
+		return entries.size();
+	}
+}
@@ -17,6 +17,7 @@ package com.qwazr.webapps;
 
 import com.qwazr.server.ServerException;
 import com.qwazr.utils.HashUtils;
+import io.undertow.servlet.spec.ServletOutputStreamImpl;
 import org.apache.commons.io.IOUtils;
 
 import javax.activation.MimetypesFileTypeMap;
@@ -24,22 +25,47 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class StaticFileServlet extends HttpServlet {
 
 	private final MimetypesFileTypeMap mimeTypeMap;
 	private final Path staticPath;
 	private final int expirationSecTime;
+	private final long sendfileThreshold;
+	private final boolean precompressed;
+	private final CompressionCache compressionCache;
+	private final StaticFileCache fileCache;
+	private final long mmapThreshold;
+	private final MappedFileCache mappedFiles;
 
-	public StaticFileServlet(final MimetypesFileTypeMap mimeTypeMap, final Path staticPath,
-			final int expirationSecTime) {
+	StaticFileServlet(final MimetypesFileTypeMap mimeTypeMap, final Path staticPath, final int expirationSecTime,
+			StaticDefinition staticDefinition, final CompressionCache compressionCache) {
 		this.mimeTypeMap = mimeTypeMap;
 		this.expirationSecTime = expirationSecTime;
+		if (staticDefinition == null)
+			staticDefinition = StaticDefinition.EMPTY;
+		this.sendfileThreshold = staticDefinition.getSendfileThreshold();
+		this.precompressed = staticDefinition.isPrecompressed();
+		this.compressionCache = staticDefinition.isCompression() ? compressionCache : null;
+		final long cacheMaxSize = staticDefinition.getCacheMaxSize();
+		this.fileCache = cacheMaxSize > 0 ?
+				new StaticFileCache(cacheMaxSize, staticDefinition.getCacheMaxFileSize(),
+						staticDefinition.getCacheMaxCount(), staticDefinition.isCacheDirect()) :
+				null;
+		this.mmapThreshold = staticDefinition.getMmapThreshold();
+		this.mappedFiles = mmapThreshold >= 0 ? new MappedFileCache() : null;
 		if (staticPath == null)
 			throw new ServerException("The path is empty");
 		if (!Files.exists(staticPath))
@@ -48,19 +74,49 @@ public class StaticFileServlet extends HttpServlet {
 		this.staticPath = staticPath;
 	}
 
-	private File handleFile(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
-		final String contextPath = request.getContextPath();
-		final String servletPath = request.getServletPath();
+	public StaticFileServlet(final MimetypesFileTypeMap mimeTypeMap, final Path staticPath,
+			final int expirationSecTime, final StaticDefinition staticDefinition) {
+		this(mimeTypeMap, staticPath, expirationSecTime, staticDefinition, null);
+	}
+
+	public StaticFileServlet(final MimetypesFileTypeMap mimeTypeMap, final Path staticPath,
+			final int expirationSecTime) {
+		this(mimeTypeMap, staticPath, expirationSecTime, StaticDefinition.EMPTY);
+	}
+
+	/**
+	 * @return the in-memory cache, or null if the cache is not enabled
+	 */
+	StaticFileCache getFileCache() {
+		return fileCache;
+	}
+
+	/**
+	 * @return the cache of the memory mapped files, or null if the memory mapped mode is not enabled
+	 */
+	MappedFileCache getMappedFileCache() {
+		return mappedFiles;
+	}
+
+	@Override
+	public void destroy() {
+		if (mappedFiles != null)
+			mappedFiles.clear();
+		super.destroy();
+	}
+
+	private Path resolve(final HttpServletRequest request) {
 		final String pathInfo = request.getPathInfo();
-		final Path staticFile;
-		final String fullPath;
-		if (pathInfo == null) {
-			staticFile = staticPath;
-			fullPath = contextPath + servletPath;
-		} else {
-			staticFile = staticPath.resolve(pathInfo.startsWith("/") ? pathInfo.substring(1) : pathInfo);
-			fullPath = contextPath + servletPath + pathInfo;
-		}
+		if (pathInfo == null)
+			return staticPath;
+		return staticPath.resolve(pathInfo.startsWith("/") ? pathInfo.substring(1) : pathInfo);
+	}
+
+	private File handleFile(final Path staticFile, final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		final String pathInfo = request.getPathInfo();
+		final String fullPath =
+				request.getContextPath() + request.getServletPath() + (pathInfo == null ? "" : pathInfo);
 		if (Files.isDirectory(staticFile)) {
 			if (Files.exists(staticFile.resolve("index.html"))) {
 				final boolean slashEnd = fullPath.endsWith("/");
@@ -75,42 +131,308 @@ public class StaticFileServlet extends HttpServlet {
 		return staticFile.toFile();
 	}
 
-	static void head(final String fileName, final Long length, final String type, final Long lastModified,
+	/**
+	 * Select the precompressed sibling (foo.js.br, foo.js.gz) accepted by the client if any.
+	 *
+	 * @param request    the current request
+	 * @param response   the current response
+	 * @param staticFile the requested file
+	 * @return the file to send
+	 */
+	private File negotiate(final HttpServletRequest request, final HttpServletResponse response,
+			final File staticFile) {
+		if (!precompressed)
+			return staticFile;
+		response.setHeader("Vary", "Accept-Encoding");
+		for (final ContentEncoding encoding : ContentEncoding.accepted(request.getHeader("Accept-Encoding"))) {
+			final File variant = new File(staticFile.getPath() + encoding.extension);
+			if (variant.isFile()) {
+				response.setHeader("Content-Encoding", encoding.name);
+				return variant;
+			}
+		}
+		return staticFile;
+	}
+
+	private boolean compress(final HttpServletRequest request, final HttpServletResponse response,
+			final boolean headOnly, final File staticFile, final String type) throws IOException {
+		return compressionCache != null &&
+				compressionCache.serve(request, response, headOnly, staticFile.toString(), type, staticFile.length(),
+						staticFile.lastModified(), expirationSecTime, () -> new FileInputStream(staticFile));
+	}
+
+	static String etag(final String fileName, final long lastModified) {
+		return HashUtils.getMurmur3Hash32Hex(fileName) + '-' + Long.toHexString(lastModified);
+	}
+
+	/**
+	 * Check if one of the entity tags of a conditional header matches the given ETag.
+	 * Quoted and unquoted tags are both accepted.
+	 *
+	 * @param headerValue the value of the conditional header
+	 * @param etag        the current ETag
+	 * @return true if the ETag matches
+	 */
+	static boolean etagMatches(final String headerValue, final String etag) {
+		for (String tag : headerValue.split(",")) {
+			tag = tag.trim();
+			if ("*".equals(tag))
+				return true;
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.length() >= 2 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"')
+				tag = tag.substring(1, tag.length() - 1);
+			if (tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check the If-None-Match and If-Modified-Since validators.
+	 * If-Modified-Since is ignored when If-None-Match is present.
+	 *
+	 * @param request      the current request
+	 * @param etag         the current ETag of the content
+	 * @param lastModified the current modification time of the content
+	 * @return true if the content has not been modified
+	 */
+	static boolean isNotModified(final HttpServletRequest request, final String etag, final Long lastModified) {
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+			return etag != null && etagMatches(ifNoneMatch, etag);
+		if (lastModified == null)
+			return false;
+		final long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * Send a 304 response without body if the validators of the request match the current content.
+	 *
+	 * @param etag              the current ETag of the content
+	 * @param lastModified      the current modification time of the content
+	 * @param expirationSecTime the expiration time
+	 * @param request           the current request
+	 * @param response          the current response
+	 * @return true if the 304 response has been sent
+	 */
+	static boolean notModified(final String etag, final long lastModified, final long expirationSecTime,
+			final HttpServletRequest request, final HttpServletResponse response) {
+		if (!isNotModified(request, etag, lastModified))
+			return false;
+		head(etag, null, null, lastModified, expirationSecTime, response);
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		return true;
+	}
+
+	static void head(final String etag, final Long length, final String type, final Long lastModified,
 			final long expirationSecTime, final HttpServletResponse response) {
 		if (type != null)
 			response.setContentType(type);
-		if (length != null)
+		if (length != null) {
 			response.setContentLengthLong(length);
-		if (lastModified != null) {
-			response.setDateHeader("Last-Modified", lastModified);
-			if (fileName != null)
-				response.setHeader("ETag",
-						HashUtils.getMurmur3Hash32Hex(fileName) + '-' + Long.toHexString(lastModified));
+			response.setHeader("Accept-Ranges", "bytes");
 		}
+		if (lastModified != null)
+			response.setDateHeader("Last-Modified", lastModified);
+		if (etag != null)
+			response.setHeader("ETag", etag);
 		response.setHeader("Cache-Control", "max-age=" + expirationSecTime);
 		response.setDateHeader("Expires", System.currentTimeMillis() + expirationSecTime * 1000);
 	}
 
+	/**
+	 * Serve the file from the in-memory cache.
+	 * The cache only holds the identity representation, requests which may be served with a content encoding
+	 * are not handled here.
+	 *
+	 * @return true if the response has been served from the cache
+	 */
+	private boolean serveCached(final Path path, final HttpServletRequest request,
+			final HttpServletResponse response, final boolean headOnly) throws IOException {
+		if (fileCache == null)
+			return false;
+		if (precompressed || compressionCache != null) {
+			if (!ContentEncoding.accepted(request.getHeader("Accept-Encoding")).isEmpty())
+				return false;
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		final StaticFileCache.Entry entry = fileCache.get(path);
+		if (entry == null)
+			return false;
+		if (notModified(entry.etag, entry.lastModified, expirationSecTime, request, response))
+			return true;
+		if (headOnly || entry.hasContent()) {
+			head(entry.etag, entry.length, entry.type, entry.lastModified, expirationSecTime, response);
+			if (!headOnly)
+				send(entry, request, response);
+			return true;
+		}
+		final FileChannel channel;
+		try {
+			if (sendMapped(path, entry.length, entry.type, entry.etag, entry.lastModified, request, response))
+				return true;
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			// Deleted, the change has not been notified yet
+			fileCache.remove(path);
+			return false;
+		}
+		try (channel) {
+			head(entry.etag, entry.length, entry.type, entry.lastModified, expirationSecTime, response);
+			send(channel, entry.length, entry.type, entry.etag, entry.lastModified, request, response);
+		}
+		return true;
+	}
+
+	private static void send(final StaticFileCache.Entry entry, final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		if (ByteRanges.serve(request, response, entry.type, entry.length, entry.etag, entry.lastModified,
+				entry::write))
+			return;
+		final ServletOutputStream out = response.getOutputStream();
+		entry.write(0, entry.length, out);
+		out.flush();
+	}
+
 	@Override
 	protected void doHead(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
-		final File staticFile = handleFile(request, response);
+		final Path path = resolve(request);
+		if (serveCached(path, request, response, true))
+			return;
+		final long generation = fileCache == null ? 0 : fileCache.getGeneration();
+		final File staticFile = handleFile(path, request, response);
 		if (staticFile == null)
 			return;
+		final File bodyFile = negotiate(request, response, staticFile);
 		final String type = mimeTypeMap.getContentType(staticFile);
-		head(staticFile.toString(), staticFile.length(), type, staticFile.lastModified(), expirationSecTime, response);
+		if (bodyFile == staticFile && compress(request, response, true, staticFile, type))
+			return;
+		final long lastModified = bodyFile.lastModified();
+		final String etag = etag(bodyFile.toString(), lastModified);
+		if (notModified(etag, lastModified, expirationSecTime, request, response))
+			return;
+		final long length = bodyFile.length();
+		// A file small enough to be cached with its content is cached by the next GET
+		if (fileCache != null && bodyFile == staticFile && !fileCache.accept(length))
+			fileCache.put(path, type, length, lastModified, etag, null, generation);
+		head(etag, length, type, lastModified, expirationSecTime, response);
 	}
 
 	@Override
 	protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
-		final File staticFile = handleFile(request, response);
+		final Path path = resolve(request);
+		if (serveCached(path, request, response, false))
+			return;
+		final long generation = fileCache == null ? 0 : fileCache.getGeneration();
+		final File staticFile = handleFile(path, request, response);
 		if (staticFile == null)
 			return;
+		final File bodyFile = negotiate(request, response, staticFile);
 		final String type = mimeTypeMap.getContentType(staticFile);
-		head(staticFile.toString(), staticFile.length(), type, staticFile.lastModified(), expirationSecTime, response);
-		try (final FileInputStream fis = new FileInputStream(staticFile)) {
+		if (bodyFile == staticFile && compress(request, response, false, staticFile, type))
+			return;
+		final long lastModified = bodyFile.lastModified();
+		final String etag = etag(bodyFile.toString(), lastModified);
+		if (notModified(etag, lastModified, expirationSecTime, request, response))
+			return;
+		final long length = bodyFile.length();
+		final boolean cacheable = fileCache != null && bodyFile == staticFile;
+		if (cacheable && !fileCache.accept(length))
+			fileCache.put(path, type, length, lastModified, etag, null, generation);
+		if (sendMapped(bodyFile.toPath(), length, type, etag, lastModified, request, response))
+			return;
+		head(etag, length, type, lastModified, expirationSecTime, response);
+		try (final FileChannel channel = FileChannel.open(bodyFile.toPath(), StandardOpenOption.READ)) {
+			if (cacheable && fileCache.accept(length))
+				send(fileCache.put(path, type, length, lastModified, etag, channel, generation), request, response);
+			else
+				send(channel, length, type, etag, lastModified, request, response);
+		}
+	}
+
+	/**
+	 * Send the file from a memory mapping shared by the concurrent requests, if the memory mapped mode is enabled
+	 * and the file is large enough.
+	 *
+	 * @return true if the response (headers and content) has been sent
+	 */
+	private boolean sendMapped(final Path file, final long length, final String type, final String etag,
+			final long lastModified, final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException {
+		if (mappedFiles == null || length < mmapThreshold)
+			return false;
+		final MappedFileCache.Mapping mapping = mappedFiles.acquire(file, lastModified, length);
+		if (mapping == null)
+			return false;
+		try {
+			head(etag, length, type, lastModified, expirationSecTime, response);
+			if (ByteRanges.serve(request, response, type, length, etag, lastModified, mapping::write))
+				return true;
 			final ServletOutputStream out = response.getOutputStream();
-			IOUtils.copy(fis, out);
+			mapping.write(0, length, out);
 			out.flush();
+			return true;
+		} finally {
+			mapping.release();
+		}
+	}
+
+	private void send(final FileChannel channel, final long length, final String type, final String etag,
+			final long lastModified, final HttpServletRequest request, final HttpServletResponse response)
+			throws IOException {
+		if (ByteRanges.serve(request, response, type, length, etag, lastModified,
+				(start, count, output) -> transfer(channel, start, count, output)))
+			return;
+		final ServletOutputStream out = response.getOutputStream();
+		if (sendfileThreshold >= 0 && length > sendfileThreshold)
+			sendFile(channel, out);
+		else
+			IOUtils.copy(Channels.newInputStream(channel), out);
+		out.flush();
+	}
+
+	/**
+	 * Send the file without copying its content through the Java heap.
+	 * When the response is an Undertow stream, the transfer is delegated to the container (sendfile),
+	 * otherwise the file channel is transferred to a channel wrapping the stream.
+	 *
+	 * @param channel the channel of the file to send
+	 * @param out     the output stream of the response
+	 * @throws IOException if any I/O error occurs
+	 */
+	static void sendFile(final FileChannel channel, final ServletOutputStream out) throws IOException {
+		if (out instanceof ServletOutputStreamImpl)
+			((ServletOutputStreamImpl) out).transferFrom(channel);
+		else
+			transfer(channel, 0, channel.size(), out);
+	}
+
+	/**
+	 * Copy a part of the file using positioned reads, the position of the channel is not modified.
+	 *
+	 * @param channel the channel of the file
+	 * @param start   the position of the first byte
+	 * @param count   the number of bytes to copy
+	 * @param out     the stream to write to
+	 * @throws IOException if any I/O error occurs
+	 */
+	static void transfer(final FileChannel channel, final long start, final long count, final OutputStream out)
+			throws IOException {
+		final WritableByteChannel target = Channels.newChannel(out);
+		final long end = start + count;
+		long position = start;
+		while (position < end) {
+			final long transferred = channel.transferTo(position, end - position, target);
+			if (transferred <= 0)
+				throw new EOFException("Unexpected end of file at position " + position);
+			position += transferred;
 		}
 	}
 }
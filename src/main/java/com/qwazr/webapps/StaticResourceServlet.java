@@ -24,6 +24,9 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.Objects;
 
 public class StaticResourceServlet extends HttpServlet {
@@ -36,11 +39,21 @@ public class StaticResourceServlet extends HttpServlet {
 
 	private final long lastModified = System.currentTimeMillis();
 
-	public StaticResourceServlet(final String resourcePrefix, final MimetypesFileTypeMap mimeTypeMap,
-			final int expirationTimeSec) {
+	private final CompressionCache compressionCache;
+
+	StaticResourceServlet(final String resourcePrefix, final MimetypesFileTypeMap mimeTypeMap,
+			final int expirationTimeSec, final StaticDefinition staticDefinition,
+			final CompressionCache compressionCache) {
 		this.resourcePrefix = resourcePrefix;
 		this.mimeTypeMap = Objects.requireNonNull(mimeTypeMap, "The mimeTypeMap is missing");
 		this.expirationTimeSec = expirationTimeSec;
+		this.compressionCache =
+				staticDefinition != null && staticDefinition.isCompression() ? compressionCache : null;
+	}
+
+	public StaticResourceServlet(final String resourcePrefix, final MimetypesFileTypeMap mimeTypeMap,
+			final int expirationTimeSec) {
+		this(resourcePrefix, mimeTypeMap, expirationTimeSec, StaticDefinition.EMPTY, null);
 	}
 
 	private String getResourcePath(final HttpServletRequest request) {
@@ -48,20 +61,48 @@ public class StaticResourceServlet extends HttpServlet {
 		return path == null ? resourcePrefix : resourcePrefix + path;
 	}
 
-	private InputStream findResource(final String resourcePath) throws IOException {
-		final InputStream input = StaticResourceServlet.class.getResourceAsStream(resourcePath);
-		if (input == null)
+	private URLConnection findResource(final String resourcePath) throws IOException {
+		final URL url = StaticResourceServlet.class.getResource(resourcePath);
+		if (url == null)
 			throw new FileNotFoundException("File not found: " + resourcePath);
-		return input;
+		return url.openConnection();
+	}
+
+	/**
+	 * Classpath resources do not support positioned reads, a new stream is opened and the leading bytes are skipped.
+	 */
+	private void copyRange(final String resourcePath, final long start, final long count, final OutputStream output)
+			throws IOException {
+		try (final InputStream input = findResource(resourcePath).getInputStream()) {
+			IOUtils.copyLarge(input, output, start, count);
+		}
+	}
+
+	private boolean compress(final HttpServletRequest request, final HttpServletResponse response,
+			final boolean headOnly, final String resourcePath, final String type, final long length,
+			final InputStream input) throws IOException {
+		return compressionCache != null &&
+				compressionCache.serve(request, response, headOnly, resourcePath, type, length, lastModified,
+						expirationTimeSec, () -> input);
 	}
 
 	@Override
 	final protected void doHead(final HttpServletRequest request, final HttpServletResponse response)
 			throws IOException {
 		final String resourcePath = getResourcePath(request);
-		try (final InputStream input = findResource(resourcePath)) {
-			final String type = mimeTypeMap.getContentType(resourcePath);
-			StaticFileServlet.head(resourcePath, null, type, lastModified, expirationTimeSec, response);
+		try {
+			final URLConnection connection = findResource(resourcePath);
+			final String etag = StaticFileServlet.etag(resourcePath, lastModified);
+			if (StaticFileServlet.notModified(etag, lastModified, expirationTimeSec, request, response))
+				return;
+			try (final InputStream input = connection.getInputStream()) {
+				final long length = connection.getContentLengthLong();
+				final String type = mimeTypeMap.getContentType(resourcePath);
+				if (compress(request, response, true, resourcePath, type, length, input))
+					return;
+				StaticFileServlet.head(etag, length < 0 ? null : length, type, lastModified, expirationTimeSec,
+						response);
+			}
 		} catch (FileNotFoundException e) {
 			response.sendError(404, e.getMessage());
 		}
@@ -71,10 +112,23 @@ public class StaticResourceServlet extends HttpServlet {
 	final protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
 			throws IOException {
 		final String resourcePath = getResourcePath(request);
-		try (final InputStream input = findResource(resourcePath)) {
-			final String type = mimeTypeMap.getContentType(resourcePath);
-			StaticFileServlet.head(resourcePath, null, type, lastModified, expirationTimeSec, response);
-			IOUtils.copy(input, response.getOutputStream());
+		try {
+			final URLConnection connection = findResource(resourcePath);
+			final String etag = StaticFileServlet.etag(resourcePath, lastModified);
+			if (StaticFileServlet.notModified(etag, lastModified, expirationTimeSec, request, response))
+				return;
+			try (final InputStream input = connection.getInputStream()) {
+				final long length = connection.getContentLengthLong();
+				final String type = mimeTypeMap.getContentType(resourcePath);
+				if (compress(request, response, false, resourcePath, type, length, input))
+					return;
+				StaticFileServlet.head(etag, length < 0 ? null : length, type, lastModified, expirationTimeSec,
+						response);
+				if (ByteRanges.serve(request, response, type, length, etag, lastModified,
+						(start, count, output) -> copyRange(resourcePath, start, count, output)))
+					return;
+				IOUtils.copy(input, response.getOutputStream());
+			}
 		} catch (FileNotFoundException e) {
 			response.sendError(404, e.getMessage());
 		}
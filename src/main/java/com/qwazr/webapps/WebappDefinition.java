@@ -34,10 +34,29 @@ public class WebappDefinition {
 
 	public final Map<String, String> controllers;
 	public final Map<String, String> filters;
-	public final Map<String, String> statics;
+	public final Map<String, StaticDefinition> statics;
 	public final Set<String> listeners;
 	public final String identity_manager;
 	public final Set<String> secure_paths;
+	/**
+	 * If set, the file changes are detected by scanning the directories at this interval (in milliseconds), for
+	 * the file systems which don't deliver the change events (NFS, some bind mounts)
+	 */
+	public final Long file_watcher_polling_ms;
+	/**
+	 * The maximum size in bytes of the cache of the compressed static content
+	 */
+	public final Long compression_cache_size;
+	/**
+	 * The engine running the Javascript controllers: "nashorn" or "graaljs"
+	 */
+	public final String javascript_engine;
+	/**
+	 * How the Javascript engines are shared by the requests: SHARED, FIXED or THREAD_LOCAL
+	 */
+	public final ScriptEnginePool.Mode script_engine_pool;
+	public final Integer script_engine_pool_size;
+	public final Long script_engine_checkout_timeout_ms;
 
 	public WebappDefinition() {
 		controllers = null;
@@ -46,6 +65,12 @@ public class WebappDefinition {
 		listeners = null;
 		identity_manager = null;
 		secure_paths = null;
+		file_watcher_polling_ms = null;
+		compression_cache_size = null;
+		javascript_engine = null;
+		script_engine_pool = null;
+		script_engine_pool_size = null;
+		script_engine_checkout_timeout_ms = null;
 	}
 
 	private WebappDefinition(Builder builder) {
@@ -55,6 +80,12 @@ public class WebappDefinition {
 		this.listeners = builder.listeners.isEmpty() ? null : new LinkedHashSet<>(builder.listeners);
 		this.identity_manager = builder.identity_manager;
 		this.secure_paths = builder.securePaths.isEmpty() ? null : new LinkedHashSet<>(builder.securePaths);
+		this.file_watcher_polling_ms = builder.fileWatcherPollingMs;
+		this.compression_cache_size = builder.compressionCacheSize;
+		this.javascript_engine = builder.javascriptEngine;
+		this.script_engine_pool = builder.scriptEnginePool;
+		this.script_engine_pool_size = builder.scriptEnginePoolSize;
+		this.script_engine_checkout_timeout_ms = builder.scriptEngineCheckoutTimeoutMs;
 	}
 
 	@JsonIgnore
@@ -69,10 +100,16 @@ public class WebappDefinition {
 
 		private final Map<String, String> controllers;
 		private final Map<String, String> filters;
-		private final Map<String, String> statics;
+		private final Map<String, StaticDefinition> statics;
 		private final Set<String> listeners;
 		private String identity_manager;
 		private final Set<String> securePaths;
+		private Long fileWatcherPollingMs;
+		private Long compressionCacheSize;
+		private String javascriptEngine;
+		private ScriptEnginePool.Mode scriptEnginePool;
+		private Integer scriptEnginePoolSize;
+		private Long scriptEngineCheckoutTimeoutMs;
 
 		Builder() {
 			controllers = new LinkedHashMap<>();
@@ -98,6 +135,18 @@ public class WebappDefinition {
 				identity_manager = webappDefinition.identity_manager;
 			if (webappDefinition.secure_paths != null)
 				securePaths.addAll(webappDefinition.secure_paths);
+			if (webappDefinition.file_watcher_polling_ms != null)
+				fileWatcherPollingMs = webappDefinition.file_watcher_polling_ms;
+			if (webappDefinition.compression_cache_size != null)
+				compressionCacheSize = webappDefinition.compression_cache_size;
+			if (webappDefinition.javascript_engine != null)
+				javascriptEngine = webappDefinition.javascript_engine;
+			if (webappDefinition.script_engine_pool != null)
+				scriptEnginePool = webappDefinition.script_engine_pool;
+			if (webappDefinition.script_engine_pool_size != null)
+				scriptEnginePoolSize = webappDefinition.script_engine_pool_size;
+			if (webappDefinition.script_engine_checkout_timeout_ms != null)
+				scriptEngineCheckoutTimeoutMs = webappDefinition.script_engine_checkout_timeout_ms;
 			return this;
 		}
 
@@ -120,7 +169,12 @@ public class WebappDefinition {
 		}
 
 		public Builder addStatic(String route, String path) {
-			statics.put(route, path);
+			statics.put(route, StaticDefinition.of(path));
+			return this;
+		}
+
+		public Builder addStatic(String route, StaticDefinition staticDefinition) {
+			statics.put(route, staticDefinition);
 			return this;
 		}
 
@@ -141,6 +195,28 @@ public class WebappDefinition {
 			return this;
 		}
 
+		public Builder setFileWatcherPolling(Long pollingIntervalMs) {
+			this.fileWatcherPollingMs = pollingIntervalMs;
+			return this;
+		}
+
+		public Builder setCompressionCacheSize(Long compressionCacheSize) {
+			this.compressionCacheSize = compressionCacheSize;
+			return this;
+		}
+
+		public Builder setJavascriptEngine(String javascriptEngine) {
+			this.javascriptEngine = javascriptEngine;
+			return this;
+		}
+
+		public Builder setScriptEnginePool(ScriptEnginePool.Mode mode, Integer size, Long checkoutTimeoutMs) {
+			this.scriptEnginePool = mode;
+			this.scriptEnginePoolSize = size;
+			this.scriptEngineCheckoutTimeoutMs = checkoutTimeoutMs;
+			return this;
+		}
+
 		public WebappDefinition build() {
 			return new WebappDefinition(this);
 		}
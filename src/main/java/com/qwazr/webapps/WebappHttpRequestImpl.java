@@ -16,9 +16,11 @@
 package com.qwazr.webapps;
 
 import com.qwazr.webapps.body.HttpBodyInterface;
+import com.qwazr.webapps.exception.WebappException;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
+import javax.ws.rs.core.Response;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -31,18 +33,37 @@ import java.util.Map;
 public class WebappHttpRequestImpl implements WebappHttpRequest {
 
 	private final HttpServletRequest request;
+	private final HttpServletResponse response;
 	private final WebappRequestMaps.WebappAttributes attributes;
 	private final WebappRequestMaps.WebappHeaders headers;
-	private final HttpBodyInterface body;
+	private HttpBodyInterface body;
+	private boolean bodyParsed;
+	private WebappHttpSessionImpl session;
 
-	WebappHttpRequestImpl(HttpServletRequest request) throws IOException, ServletException {
+	WebappHttpRequestImpl(HttpServletRequest request, HttpServletResponse response) {
 		this.request = request;
+		this.response = response;
 		this.attributes = new WebappRequestMaps.WebappAttributes(request);
 		this.headers = new WebappRequestMaps.WebappHeaders(request);
-		this.body = HttpBodyInterface.newEntity(request);
+		this.bodyParsed = false;
 	}
 
+	/**
+	 * The body is parsed on the first call, the requests which don't use it don't pay for the parsing.
+	 *
+	 * @return the parsed body, or null if the content type is not supported
+	 * @throws WebappException with the status 400 (Bad Request) if the body cannot be parsed. The Javascript
+	 *                         controllers send it to the client.
+	 */
 	public HttpBodyInterface getBody() {
+		if (!bodyParsed) {
+			try {
+				body = HttpBodyInterface.newEntity(request);
+			} catch (IOException | ServletException e) {
+				throw new WebappException(Response.Status.BAD_REQUEST, WebappException.Title.BODY_ERROR, e);
+			}
+			bodyParsed = true;
+		}
 		return body;
 	}
 
@@ -344,10 +365,17 @@ public class WebappHttpRequestImpl implements WebappHttpRequest {
 
 	@Override
 	public WebappHttpSession getSession(boolean create) {
-		HttpSession session = request.getSession(create);
+		final WebappHttpSessionImpl session = getLazySession();
+		return session.getHttpSession(create) == null ? null : session;
+	}
+
+	/**
+	 * @return the session wrapper of this request, the session is only created by the first write
+	 */
+	WebappHttpSessionImpl getLazySession() {
 		if (session == null)
-			return null;
-		return new WebappHttpSessionImpl(session);
+			session = new WebappHttpSessionImpl(request, response);
+		return session;
 	}
 
 	@Override
@@ -15,34 +15,68 @@
  **/
 package com.qwazr.webapps;
 
+import io.undertow.servlet.spec.HttpSessionImpl;
+
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionContext;
 import java.util.*;
 
+/**
+ * The session of a request. The wrapper is created once per request and the session itself is created lazily:
+ * reading an attribute does not create a session, only the first write (or a call which needs the identity of the
+ * session) does.
+ * <p>
+ * The session cookie can only be sent before the response is committed: creating the session after that point
+ * throws an {@link IllegalStateException}. A controller which writes a large body must set its session attributes
+ * first. The session is looked up on each call, so a session invalidated elsewhere is never used.
+ */
 public class WebappHttpSessionImpl implements WebappHttpSession {
 
-	private final HttpSession session;
+	private final HttpServletRequest request;
+	private final HttpServletResponse response;
 	private final AttributesMap attributesMap;
 
-	WebappHttpSessionImpl(HttpSession session) {
-		this.session = session;
+	WebappHttpSessionImpl(HttpServletRequest request, HttpServletResponse response) {
+		this.request = request;
+		this.response = response;
 		this.attributesMap = new AttributesMap();
 	}
 
+	/**
+	 * @param create true to create the session if it does not exist
+	 * @return the current session, or null if there is no session and create is false
+	 * @throws IllegalStateException if the session must be created and the response is already committed
+	 */
+	HttpSession getHttpSession(boolean create) {
+		final HttpSession session = request.getSession(false);
+		if (session != null || !create)
+			return session;
+		if (response != null && response.isCommitted())
+			throw new IllegalStateException(
+					"The response is committed, the session cannot be created anymore: " + request.getRequestURI());
+		return request.getSession(true);
+	}
+
+	private HttpSession session() {
+		return getHttpSession(true);
+	}
+
 	@Override
 	public long getCreationTime() {
-		return session.getCreationTime();
+		return session().getCreationTime();
 	}
 
 	@Override
 	public String getId() {
-		return session.getId();
+		return session().getId();
 	}
 
 	@Override
 	public long getLastAccessedTime() {
-		return session.getLastAccessedTime();
+		return session().getLastAccessedTime();
 	}
 
 	@Override
@@ -52,12 +86,12 @@ public class WebappHttpSessionImpl implements WebappHttpSession {
 
 	@Override
 	public void setMaxInactiveInterval(int interval) {
-		session.setMaxInactiveInterval(interval);
+		session().setMaxInactiveInterval(interval);
 	}
 
 	@Override
 	public int getMaxInactiveInterval() {
-		return session.getMaxInactiveInterval();
+		return session().getMaxInactiveInterval();
 	}
 
 	@Override
@@ -68,61 +102,70 @@ public class WebappHttpSessionImpl implements WebappHttpSession {
 
 	@Override
 	public Object getAttribute(String name) {
-		return session.getAttribute(name);
+		final HttpSession session = getHttpSession(false);
+		return session == null ? null : session.getAttribute(name);
 	}
 
 	@Override
 	@Deprecated
 	public Object getValue(String name) {
-		return session.getValue(name);
+		return getAttribute(name);
 	}
 
 	@Override
 	public Enumeration<String> getAttributeNames() {
-		return session.getAttributeNames();
+		final HttpSession session = getHttpSession(false);
+		return session == null ? Collections.emptyEnumeration() : session.getAttributeNames();
 	}
 
 	@Override
 	@Deprecated
 	public String[] getValueNames() {
-		return session.getValueNames();
+		return Collections.list(getAttributeNames()).toArray(new String[0]);
 	}
 
 	@Override
 	public void setAttribute(String name, Object value) {
-		session.setAttribute(name, value);
+		if (value == null)
+			removeAttribute(name);
+		else
+			session().setAttribute(name, value);
 	}
 
 	@Override
 	@Deprecated
 	public void putValue(String name, Object value) {
-		session.putValue(name, value);
+		setAttribute(name, value);
 	}
 
 	@Override
 	public boolean isAttribute(String name) {
-		return session.getAttribute(name) != null;
+		return getAttribute(name) != null;
 	}
 
 	@Override
 	public void removeAttribute(String name) {
-		session.removeAttribute(name);
+		final HttpSession session = getHttpSession(false);
+		if (session != null)
+			session.removeAttribute(name);
 	}
 
 	@Override
 	@Deprecated
 	public void removeValue(String name) {
-		session.removeValue(name);
+		removeAttribute(name);
 	}
 
 	@Override
 	public void invalidate() {
-		session.invalidate();
+		final HttpSession session = getHttpSession(false);
+		if (session != null)
+			session.invalidate();
 	}
 
 	@Override
 	public boolean isNew() {
-		return session.isNew();
+		return session().isNew();
 	}
 
 	@Override
@@ -130,26 +173,40 @@ public class WebappHttpSessionImpl implements WebappHttpSession {
 		return attributesMap;
 	}
 
-	private class AttributesMap implements Map<String, Object> {
+	/**
+	 * @return the names of the attributes. With Undertow, this is the live set of the session (O(1) size),
+	 * otherwise a copy of the enumeration.
+	 */
+	private Set<String> attributeNames() {
+		final HttpSession session = getHttpSession(false);
+		if (session == null)
+			return Collections.emptySet();
+		if (session instanceof HttpSessionImpl)
+			return ((HttpSessionImpl) session).getSession().getAttributeNames();
+		final Set<String> names = new LinkedHashSet<>();
+		final Enumeration<String> e = session.getAttributeNames();
+		if (e != null)
+			while (e.hasMoreElements())
+				names.add(e.nextElement());
+		return names;
+	}
+
+	/**
+	 * A live view of the attributes. Nothing is copied, the iterators read the attributes while iterating.
+	 */
+	private class AttributesMap extends AbstractMap<String, Object> {
+
+		private final Set<String> keySet = new KeySet();
+		private final Set<Entry<String, Object>> entrySet = new EntrySet();
+
 		@Override
 		public int size() {
-			int i = 0;
-			Enumeration<String> e = session.getAttributeNames();
-			if (e == null)
-				return 0;
-			while (e.hasMoreElements()) {
-				e.nextElement();
-				i++;
-			}
-			return i;
+			return attributeNames().size();
 		}
 
 		@Override
 		public boolean isEmpty() {
-			Enumeration<String> e = session.getAttributeNames();
-			if (e == null)
-				return true;
-			return !e.hasMoreElements();
+			return attributeNames().isEmpty();
 		}
 
 		@Override
@@ -163,11 +220,8 @@ public class WebappHttpSessionImpl implements WebappHttpSession {
 		public boolean containsValue(Object value) {
 			if (value == null)
 				return false;
-			Enumeration<String> e = session.getAttributeNames();
-			if (e == null)
-				return false;
-			while (e.hasMoreElements())
-				if (value.equals(e.nextElement()))
+			for (final String name : attributeNames())
+				if (value.equals(getAttribute(name)))
 					return true;
 			return false;
 		}
@@ -176,13 +230,13 @@ public class WebappHttpSessionImpl implements WebappHttpSession {
 		public Object get(Object key) {
 			if (key == null)
 				return null;
-			return session.getAttribute(key.toString());
+			return getAttribute(key.toString());
 		}
 
 		@Override
 		public Object put(String key, Object value) {
-			Object old = session.getAttribute(key);
-			session.setAttribute(key, value);
+			final Object old = getAttribute(key);
+			setAttribute(key, value);
 			return old;
 		}
 
@@ -190,9 +244,9 @@ public class WebappHttpSessionImpl implements WebappHttpSession {
 		public Object remove(Object key) {
 			if (key == null)
 				return null;
-			String attr = key.toString();
-			Object old = session.getAttribute(attr);
-			session.removeAttribute(attr);
+			final String attr = key.toString();
+			final Object old = getAttribute(attr);
+			removeAttribute(attr);
 			return old;
 		}
 
@@ -205,45 +259,121 @@ public class WebappHttpSessionImpl implements WebappHttpSession {
 
 		@Override
 		public void clear() {
-			Enumeration<String> e = session.getAttributeNames();
-			if (e == null)
-				return;
-			while (e.hasMoreElements())
-				removeAttribute(e.nextElement());
+			for (final String name : new ArrayList<>(attributeNames()))
+				removeAttribute(name);
 		}
 
 		@Override
 		public Set<String> keySet() {
-			final LinkedHashSet<String> set = new LinkedHashSet<>();
-			final Enumeration<String> e = session.getAttributeNames();
-			if (e != null)
-				while (e.hasMoreElements())
-					set.add(e.nextElement());
-			return set;
+			return keySet;
+		}
+
+		@Override
+		public Set<Entry<String, Object>> entrySet() {
+			return entrySet;
 		}
+	}
+
+	private class KeySet extends AbstractSet<String> {
 
 		@Override
-		public Collection<Object> values() {
-			ArrayList<Object> values = new ArrayList<>();
-			Enumeration<String> e = session.getAttributeNames();
-			if (e != null)
-				while (e.hasMoreElements())
-					values.add(session.getAttribute(e.nextElement()));
-			return values;
+		public Iterator<String> iterator() {
+			return new AttributeIterator<>((name, value) -> name);
 		}
 
-		@SuppressWarnings("rawtypes")
 		@Override
-		public Set<Entry<String, Object>> entrySet() {
-			final LinkedHashMap<String, Object> map = new LinkedHashMap<>();
-			final Enumeration<String> e = session.getAttributeNames();
-			if (e != null) {
-				while (e.hasMoreElements()) {
-					String key = e.nextElement();
-					map.put(key, session.getAttribute(key));
+		public int size() {
+			return attributesMap.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return attributesMap.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return attributesMap.remove(o) != null;
+		}
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+
+		@Override
+		public Iterator<Map.Entry<String, Object>> iterator() {
+			return new AttributeIterator<>(AttributeEntry::new);
+		}
+
+		@Override
+		public int size() {
+			return attributesMap.size();
+		}
+	}
+
+	private class AttributeEntry extends AbstractMap.SimpleEntry<String, Object> {
+
+		private AttributeEntry(final String name, final Object value) {
+			super(name, value);
+		}
+
+		@Override
+		public Object setValue(final Object value) {
+			setAttribute(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+
+	@FunctionalInterface
+	private interface AttributeMapper<T> {
+		T apply(String name, Object value);
+	}
+
+	/**
+	 * Iterate over the names of the attributes, skipping the attributes removed in the meantime.
+	 */
+	private class AttributeIterator<T> implements Iterator<T> {
+
+		private final Iterator<String> names;
+		private final AttributeMapper<T> mapper;
+		private String nextName;
+		private Object nextValue;
+		private String lastName;
+
+		private AttributeIterator(final AttributeMapper<T> mapper) {
+			this.names = attributeNames().iterator();
+			this.mapper = mapper;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (nextName == null && names.hasNext()) {
+				final String name = names.next();
+				final Object value = getAttribute(name);
+				if (value != null) {
+					nextName = name;
+					nextValue = value;
 				}
 			}
-			return map.entrySet();
+			return nextName != null;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			lastName = nextName;
+			final T next = mapper.apply(nextName, nextValue);
+			nextName = null;
+			nextValue = null;
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			if (lastName == null)
+				throw new IllegalStateException();
+			removeAttribute(lastName);
+			lastName = null;
 		}
 	}
 }
@@ -22,7 +22,6 @@ import com.qwazr.server.ApplicationBuilder;
 import com.qwazr.server.GenericFactory;
 import com.qwazr.server.GenericServer;
 import com.qwazr.server.GenericServerBuilder;
-import com.qwazr.server.InFileSessionPersistenceManager;
 import com.qwazr.server.ServerException;
 import com.qwazr.server.ServletContextBuilder;
 import com.qwazr.utils.ClassLoaderUtils;
@@ -40,8 +39,6 @@ import org.glassfish.jersey.servlet.ServletContainer;
 import org.webjars.servlet.WebjarsServlet;
 
 import javax.activation.MimetypesFileTypeMap;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.Servlet;
@@ -49,8 +46,12 @@ import javax.ws.rs.Path;
 import javax.ws.rs.core.Application;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.function.Supplier;
 
@@ -58,6 +59,8 @@ public class WebappManager {
 
     public final static int DEFAULT_EXPIRATION_TIME = 86400;
 
+    public final static long DEFAULT_COMPRESSION_CACHE_SIZE = 32 * 1024 * 1024;
+
     public final static List<Class<?>> SWAGGER_CLASSES = List.of(OpenApiResource.class);
 
     public final static List<Class<?>> JACKSON_CLASSES =
@@ -72,8 +75,14 @@ public class WebappManager {
 
     private final WebappDefinition webappDefinition;
 
+    private final Map<String, StaticFileCache> staticFileCaches;
+
+    private final ScriptEnginePool scriptEnginePool;
+
     private WebappManager(final Builder builder) {
         this.webappDefinition = builder.webappDefinition;
+        this.staticFileCaches = Collections.unmodifiableMap(new LinkedHashMap<>(builder.staticFileCaches));
+        this.scriptEnginePool = builder.scriptEnginePool;
         // Create the webservice singleton
         service = new WebappServiceImpl(this);
     }
@@ -86,6 +95,20 @@ public class WebappManager {
         return webappDefinition;
     }
 
+    /**
+     * @return the in-memory caches of the static servlets, mapped by URL path
+     */
+    public Map<String, StaticFileCache> getStaticFileCaches() {
+        return staticFileCaches;
+    }
+
+    /**
+     * @return the Javascript engines and their usage metrics, or null if there is no Javascript controller
+     */
+    public ScriptEnginePool getScriptEnginePool() {
+        return scriptEnginePool;
+    }
+
     public static Builder of(final GenericServerBuilder serverBuilder, final ServletContextBuilder context) {
         return new Builder(serverBuilder, context);
     }
@@ -95,9 +118,21 @@ public class WebappManager {
         private final GenericServerBuilder serverBuilder;
         private final ServletContextBuilder context;
         private MimetypesFileTypeMap mimeTypeMap;
-        private ScriptEngine scriptEngine;
+        private long compressionCacheSize = DEFAULT_COMPRESSION_CACHE_SIZE;
+        private CompressionCache compressionCache;
+        private final Map<String, StaticFileCache> staticFileCaches = new LinkedHashMap<>();
+        private long fileWatcherPollingInterval = FileWatcher.DEFAULT_POLLING_INTERVAL_MS;
+        private boolean fileWatcherPolling;
+        private FileWatcher fileWatcher;
+        private ScriptEnginePool.Mode scriptEnginePoolMode = ScriptEnginePool.Mode.SHARED;
+        private int scriptEnginePoolSize = ScriptEnginePool.DEFAULT_SIZE;
+        private long scriptEngineCheckoutTimeoutMs = ScriptEnginePool.DEFAULT_CHECKOUT_TIMEOUT_MS;
+        private JavascriptEngine javascriptEngine;
+        private ScriptEnginePool scriptEnginePool;
         private LibraryServiceInterface libraryService;
         private WebappDefinition webappDefinition;
+        private boolean closeableFilterRegistered;
+        private final List<SmartFactory<?>> smartFactories = new ArrayList<>();
 
         private Builder(final GenericServerBuilder serverBuilder, final ServletContextBuilder context) {
             this.serverBuilder = serverBuilder;
@@ -115,14 +150,35 @@ public class WebappManager {
             if (webappDefinition == null)
                 return this;
 
+            // The compression cache is created by the first static servlet
+            if (webappDefinition.compression_cache_size != null)
+                compressionCacheSize(webappDefinition.compression_cache_size);
+
+            // The file watcher is created by the first static servlet
+            if (webappDefinition.file_watcher_polling_ms != null && webappDefinition.file_watcher_polling_ms > 0)
+                fileWatcherPolling(webappDefinition.file_watcher_polling_ms);
+
+            // The script engine pool is created by the first Javascript controller
+            if (webappDefinition.javascript_engine != null)
+                javascriptEngine(webappDefinition.javascript_engine);
+            if (webappDefinition.script_engine_pool != null)
+                scriptEnginePool(webappDefinition.script_engine_pool,
+                        webappDefinition.script_engine_pool_size == null ? ScriptEnginePool.DEFAULT_SIZE :
+                                webappDefinition.script_engine_pool_size,
+                        webappDefinition.script_engine_checkout_timeout_ms == null ?
+                                ScriptEnginePool.DEFAULT_CHECKOUT_TIMEOUT_MS :
+                                webappDefinition.script_engine_checkout_timeout_ms);
+
             // Load the static handlers
             if (webappDefinition.statics != null)
-                webappDefinition.statics.forEach((urlPath, filePath) -> {
-                    final String finalFilePath = SubstitutedVariables.propertyAndEnvironmentSubstitute(filePath);
+                webappDefinition.statics.forEach((urlPath, staticDefinition) -> {
+                    final String finalFilePath =
+                            SubstitutedVariables.propertyAndEnvironmentSubstitute(staticDefinition.path);
                     if (finalFilePath.contains(".") && !finalFilePath.contains("/"))
-                        registerStaticServlet(urlPath, finalFilePath);
+                        registerStaticServlet(urlPath, finalFilePath, DEFAULT_EXPIRATION_TIME, staticDefinition);
                     else
-                        registerStaticServlet(urlPath, parentDirectory.resolve(finalFilePath), DEFAULT_EXPIRATION_TIME);
+                        registerStaticServlet(urlPath, parentDirectory.resolve(finalFilePath),
+                                DEFAULT_EXPIRATION_TIME, staticDefinition);
                 });
 
             // Load the listeners
@@ -140,9 +196,6 @@ public class WebappManager {
                 ConcurrentUtils.forEachEx(webappDefinition.filters,
                         (urlPath, filterClass) -> registerJavaFilter(urlPath, ClassLoaderUtils.findClass(filterClass)));
 
-            // Load the closeable filter
-            registerJavaFilter("/*", CloseableFilter.class);
-
             // Load the filters
             if (webappDefinition.filters != null)
                 ConcurrentUtils.forEachEx(webappDefinition.filters, (urlPath, filterClass) -> {
@@ -195,10 +248,33 @@ public class WebappManager {
             return registerCustomFaviconServlet(DEFAULT_FAVICON_RESOURCE_PATH);
         }
 
+        /**
+         * Persist the sessions in append-only log files, one per deployment
+         *
+         * @param persistenceDirectory the directory of the log files
+         * @return the current builder
+         * @throws IOException if the directory cannot be created
+         */
         public Builder persistSessions(final java.nio.file.Path persistenceDirectory) throws IOException {
             if (!Files.exists(persistenceDirectory))
                 Files.createDirectory(persistenceDirectory);
-            serverBuilder.sessionPersistenceManager(new InFileSessionPersistenceManager(persistenceDirectory));
+            return persistSessions(LogSessionStore.factory(persistenceDirectory));
+        }
+
+        /**
+         * Persist the sessions using a custom store. The changed sessions are written in the background, and a
+         * stored session is restored when a request asks for it.
+         *
+         * @param sessionStoreFactory the factory of the stores
+         * @return the current builder
+         */
+        public Builder persistSessions(final SessionStore.Factory sessionStoreFactory) {
+            final SessionPersistence sessionPersistence =
+                    new SessionPersistence(sessionStoreFactory, SessionPersistence.DEFAULT_FLUSH_INTERVAL_MS);
+            serverBuilder.sessionPersistenceManager(sessionPersistence);
+            context.listener(Servlets.listener(SessionPersistence.class,
+                    GenericFactory.fromInstance(sessionPersistence)));
+            serverBuilder.shutdownListener(server -> sessionPersistence.close());
             return this;
         }
 
@@ -225,32 +301,116 @@ public class WebappManager {
             return mimeTypeMap;
         }
 
+        /**
+         * Set the maximum size of the cache of the compressed content.
+         * It can also be set by the compression_cache_size property of the webapp definition.
+         *
+         * @param compressionCacheSize the maximum size in bytes
+         * @return the current builder
+         */
+        public synchronized Builder compressionCacheSize(final long compressionCacheSize) {
+            if (compressionCache != null)
+                throw new IllegalStateException("The compression cache is already created");
+            this.compressionCacheSize = compressionCacheSize;
+            return this;
+        }
+
+        private synchronized CompressionCache getCompressionCache(final StaticDefinition staticDefinition) {
+            if (staticDefinition == null || !staticDefinition.isCompression())
+                return null;
+            if (compressionCache == null)
+                compressionCache = new CompressionCache(compressionCacheSize);
+            return compressionCache;
+        }
+
+        /**
+         * Detect the file changes by scanning the directories periodically, for file systems which don't emit
+         * change events. It can also be set by the file_watcher_polling_ms property of the webapp definition.
+         *
+         * @param pollingIntervalMs the interval between two scans in milliseconds
+         * @return the current builder
+         * @throws IllegalStateException if a directory is already watched
+         */
+        public synchronized Builder fileWatcherPolling(final long pollingIntervalMs) {
+            if (fileWatcher != null)
+                throw new IllegalStateException("The file watcher polling must be set before the first watched path");
+            this.fileWatcherPolling = true;
+            this.fileWatcherPollingInterval = pollingIntervalMs;
+            return this;
+        }
+
+        private synchronized FileWatcher getFileWatcher() {
+            if (fileWatcher == null) {
+                final FileWatcher watcher = new FileWatcher(fileWatcherPollingInterval, fileWatcherPolling);
+                serverBuilder.shutdownListener(server -> watcher.close());
+                fileWatcher = watcher;
+            }
+            return fileWatcher;
+        }
+
         public Builder registerStaticServlet(final String urlPath, final String resourcePath,
-                                             final int expirationSecTime) {
+                                             final int expirationSecTime,
+                                             final StaticDefinition staticDefinition) {
             final ServletInfo servletInfo =
                     new ServletInfo(StaticResourceServlet.class.getName() + '@' + urlPath, StaticResourceServlet.class,
                             GenericFactory.fromInstance(
                                     new StaticResourceServlet('/' + StringUtils.replaceChars(resourcePath, '.', '/'),
-                                            getMimeTypeMap(), expirationSecTime))).addMapping(urlPath);
+                                            getMimeTypeMap(), expirationSecTime, staticDefinition,
+                                            getCompressionCache(staticDefinition)))).addMapping(urlPath);
             context.servlet(servletInfo);
             return this;
         }
 
+        public Builder registerStaticServlet(final String urlPath, final String resourcePath,
+                                             final int expirationSecTime) {
+            return registerStaticServlet(urlPath, resourcePath, expirationSecTime, StaticDefinition.EMPTY);
+        }
+
         public Builder registerStaticServlet(final String urlPath, final String resourcePath) {
             return registerStaticServlet(urlPath, resourcePath, DEFAULT_EXPIRATION_TIME);
         }
 
         public Builder registerStaticServlet(final String urlPath,
                                              final java.nio.file.Path staticsPath,
-                                             final int expirationSecTime) {
+                                             final int expirationSecTime,
+                                             final StaticDefinition staticDefinition) {
+            final StaticFileServlet servlet = new StaticFileServlet(getMimeTypeMap(), staticsPath, expirationSecTime,
+                    staticDefinition, getCompressionCache(staticDefinition));
             final ServletInfo servletInfo =
                     new ServletInfo(StaticFileServlet.class.getName() + '@' + urlPath, StaticFileServlet.class,
-                            GenericFactory.fromInstance(new StaticFileServlet(getMimeTypeMap(), staticsPath,
-                                    expirationSecTime))).addMapping(urlPath);
+                            GenericFactory.fromInstance(servlet)).addMapping(urlPath);
             context.servlet(servletInfo);
+            final StaticFileCache fileCache = servlet.getFileCache();
+            if (fileCache != null) {
+                fileCache.watch(getFileWatcher(), staticsPath);
+                staticFileCaches.put(urlPath, fileCache);
+            }
+            final MappedFileCache mappedFileCache = servlet.getMappedFileCache();
+            if (mappedFileCache != null)
+                mappedFileCache.watch(getFileWatcher(), staticsPath);
             return this;
         }
 
+        public Builder registerStaticServlet(final String urlPath,
+                                             final java.nio.file.Path staticsPath,
+                                             final int expirationSecTime) {
+            return registerStaticServlet(urlPath, staticsPath, expirationSecTime, StaticDefinition.EMPTY);
+        }
+
+        /**
+         * The closeable filter is mapped by servlet name to the controllers and the Java servlets, the static content
+         * does not go through it. The forwards are filtered too, as a rewrite rule may forward to a controller.
+         */
+        private void registerCloseableFilter(final String servletName) {
+            final String filterName = CloseableFilter.class.getName();
+            if (!closeableFilterRegistered) {
+                context.filter(filterName, CloseableFilter.class, GenericFactory.fromInstance(new CloseableFilter()));
+                closeableFilterRegistered = true;
+            }
+            context.addFilterServletNameMapping(filterName, servletName, DispatcherType.REQUEST);
+            context.addFilterServletNameMapping(filterName, servletName, DispatcherType.FORWARD);
+        }
+
         private Builder registerController(final String urlPath, final java.nio.file.Path parentDirectory,
                                            final String filePath) {
             try {
@@ -266,23 +426,93 @@ public class WebappManager {
         }
 
         /**
-         * Prepare the Javascript interpreter
+         * Set how the Javascript engines are shared by the requests.
+         * It can also be set by the script_engine_pool properties of the webapp definition.
+         *
+         * @param mode              SHARED (one engine), FIXED (a pool of engines) or THREAD_LOCAL
+         * @param size              the maximum number of engines in FIXED mode
+         * @param checkoutTimeoutMs the maximum time a request waits for an engine in FIXED mode
+         * @return the current builder
+         */
+        public synchronized Builder scriptEnginePool(final ScriptEnginePool.Mode mode, final int size,
+                                                     final long checkoutTimeoutMs) {
+            if (scriptEnginePool != null)
+                throw new IllegalStateException("The script engine pool is already created");
+            this.scriptEnginePoolMode = mode;
+            this.scriptEnginePoolSize = size;
+            this.scriptEngineCheckoutTimeoutMs = checkoutTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Set the engine running the Javascript controllers.
+         * By default, Nashorn is used if the JDK provides it, otherwise GraalJS.
+         *
+         * @param javascriptEngine the engine
+         * @return the current builder
+         */
+        public synchronized Builder javascriptEngine(final JavascriptEngine javascriptEngine) {
+            if (scriptEnginePool != null)
+                throw new IllegalStateException("The script engine pool is already created");
+            this.javascriptEngine = javascriptEngine;
+            return this;
+        }
+
+        /**
+         * Set the engine running the Javascript controllers by its name.
+         *
+         * @param engineName "nashorn" or "graaljs"
+         * @return the current builder
+         */
+        public Builder javascriptEngine(final String engineName) {
+            switch (engineName.trim().toLowerCase()) {
+                case NashornJavascriptEngine.NAME:
+                    if (!NashornJavascriptEngine.isAvailable())
+                        throw new ServerException("Nashorn is not provided by this JDK");
+                    return javascriptEngine(new NashornJavascriptEngine());
+                case GraalJavascriptEngine.NAME:
+                    if (!GraalJavascriptEngine.isAvailable())
+                        throw new ServerException("GraalJS is not available: add org.graalvm.js:js and " +
+                                "org.graalvm.sdk:graal-sdk to the classpath");
+                    return javascriptEngine(new GraalJavascriptEngine());
+                default:
+                    throw new ServerException("Unknown Javascript engine: " + engineName);
+            }
+        }
+
+        /**
+         * Prepare the Javascript interpreters
          *
-         * @return
+         * @return the pool of engines
          */
-        private synchronized ScriptEngine getScriptEngine() {
-            if (scriptEngine == null) {
-                final ScriptEngineManager manager = new ScriptEngineManager();
-                scriptEngine = manager.getEngineByName("nashorn");
+        private synchronized ScriptEnginePool getScriptEnginePool() {
+            if (scriptEnginePool == null) {
+                if (javascriptEngine == null) {
+                    if (NashornJavascriptEngine.isAvailable())
+                        javascriptEngine = new NashornJavascriptEngine();
+                    else if (GraalJavascriptEngine.isAvailable())
+                        javascriptEngine = new GraalJavascriptEngine();
+                    else
+                        throw new ServerException("No Javascript engine is available for the controllers: " +
+                                "Nashorn is not provided by this JDK, add org.graalvm.js:js and " +
+                                "org.graalvm.sdk:graal-sdk to the classpath to use GraalJS");
+                }
+                final ScriptEnginePool pool = new ScriptEnginePool(scriptEnginePoolMode, scriptEnginePoolSize,
+                        scriptEngineCheckoutTimeoutMs, javascriptEngine);
+                serverBuilder.shutdownListener(server -> pool.close());
+                scriptEnginePool = pool;
             }
-            return scriptEngine;
+            return scriptEnginePool;
         }
 
         private void registerJavascriptServlet(final String urlPath, final java.nio.file.Path controlerPath) {
-            context.servlet(new ServletInfo(JavascriptServlet.class.getName() + '@' + urlPath, JavascriptServlet.class,
-                    GenericFactory.fromInstance(
-                            new JavascriptServlet(getScriptEngine(), libraryService, controlerPath))).addMapping(
-                    urlPath));
+            final JavascriptServlet servlet = new JavascriptServlet(getScriptEnginePool(), libraryService,
+                    controlerPath);
+            servlet.watch(getFileWatcher());
+            final String servletName = JavascriptServlet.class.getName() + '@' + urlPath;
+            context.servlet(new ServletInfo(servletName, JavascriptServlet.class,
+                    GenericFactory.fromInstance(servlet)).addMapping(urlPath));
+            registerCloseableFilter(servletName);
         }
 
         private void registerJavaController(final String urlPath, final String classDef)
@@ -310,11 +540,22 @@ public class WebappManager {
             return (ConstructorParametersImpl) serverBuilder.getConstructorParameters();
         }
 
+        /**
+         * The constructor of the servlets and filters is resolved when the webapp is built
+         */
+        private <T> SmartFactory<T> smartFactory(final Class<T> clazz) {
+            final SmartFactory<T> factory = SmartFactory.from(libraryService, getConstructorParameters(), clazz);
+            smartFactories.add(factory);
+            return factory;
+        }
+
         public <T extends Servlet> Builder registerJavaServlet(final String urlPath, final Class<T> servletClass,
                                                                final GenericFactory<T> servletFactory) {
-            context.servlet(servletClass.getName() + '@' + urlPath, servletClass, servletFactory == null ?
-                    SmartFactory.from(libraryService, getConstructorParameters(), servletClass) :
+            final String servletName = servletClass.getName() + '@' + urlPath;
+            context.servlet(servletName, servletClass, servletFactory == null ?
+                    smartFactory(servletClass) :
                     servletFactory, urlPath == null ? null : StringUtils.split(urlPath));
+            registerCloseableFilter(servletName);
             return this;
         }
 
@@ -340,7 +581,7 @@ public class WebappManager {
                                                              final GenericFactory<T> filterFactory) {
             final String filterName = filterClass.getName() + '@' + urlPathes;
             context.filter(filterName, filterClass, filterFactory == null ?
-                    SmartFactory.from(libraryService, getConstructorParameters(), filterClass) :
+                    smartFactory(filterClass) :
                     filterFactory);
             if (urlPathes != null) {
                 String[] urlPaths = StringUtils.split(urlPathes);
@@ -369,10 +610,12 @@ public class WebappManager {
         }
 
         public void registerJavaJaxRsAppServlet(final String urlPath, final Class<? extends Application> appClass) {
-            context.jaxrs(ServletContainer.class.getName() + '@' + urlPath, appClass, servletInfo -> {
+            final String servletName = ServletContainer.class.getName() + '@' + urlPath;
+            context.jaxrs(servletName, appClass, servletInfo -> {
                 servletInfo.addMapping(urlPath).setLoadOnStartup(1);
                 addSwaggerContext(urlPath, servletInfo);
             });
+            registerCloseableFilter(servletName);
         }
 
         public void registerJavaJaxRsClassServlet(final String urlPath, final String classList)
@@ -391,11 +634,15 @@ public class WebappManager {
                 applicationBuilder.classes(RolesAllowedDynamicFeature.class);
             if (withSwagger)
                 applicationBuilder.classes(SWAGGER_CLASSES);
-            context.jaxrs(null, applicationBuilder, servletInfo -> {
+            final Collection<String> applicationPaths = applicationBuilder.getApplicationPaths();
+            final String servletName = ServletContainer.class.getName() + '@' +
+                    (applicationPaths == null ? StringUtils.EMPTY : String.join(",", applicationPaths));
+            context.jaxrs(servletName, applicationBuilder, servletInfo -> {
                 final Collection<String> paths = applicationBuilder.getApplicationPaths();
                 if (paths != null && !paths.isEmpty() && withSwagger)
                     addSwaggerContext(paths.iterator().next(), servletInfo);
             });
+            registerCloseableFilter(servletName);
             return this;
         }
 
@@ -404,6 +651,7 @@ public class WebappManager {
         }
 
         public WebappManager build() {
+            smartFactories.forEach(SmartFactory::freeze);
             return new WebappManager(this);
         }
     }
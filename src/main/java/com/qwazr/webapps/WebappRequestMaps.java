@@ -30,13 +30,7 @@ public abstract class WebappRequestMaps<T> implements Map<String, T> {
 
 	@Override
 	public int size() {
-		int i = 0;
-		Enumeration<String> names = getNames();
-		while (names.hasMoreElements()) {
-			names.nextElement();
-			i++;
-		}
-		return i;
+		return snapshot().size();
 	}
 
 	@Override
@@ -51,12 +45,7 @@ public abstract class WebappRequestMaps<T> implements Map<String, T> {
 
 	@Override
 	public boolean containsValue(Object value) {
-		Enumeration<String> names = getNames();
-		while (names.hasMoreElements()) {
-			if (value.equals(get(names.nextElement())))
-				return true;
-		}
-		return false;
+		return snapshot().containsValue(value);
 	}
 
 	@Override
@@ -96,36 +85,42 @@ public abstract class WebappRequestMaps<T> implements Map<String, T> {
 
 	@Override
 	public void clear() {
-		final Enumeration<String> names = getNames();
-		while (names.hasMoreElements())
-			removeValue(names.nextElement());
+		for (final String name : snapshot().keySet())
+			removeValue(name);
 	}
 
-	private Map<String, T> toMap() {
+	/**
+	 * @return a read only copy of the entries
+	 */
+	protected Map<String, T> snapshot() {
 		final Map<String, T> map = new LinkedHashMap<>();
 		final Enumeration<String> names = getNames();
 		while (names.hasMoreElements()) {
 			final String key = names.nextElement();
 			map.put(key, get(key));
 		}
-		return map;
+		return Collections.unmodifiableMap(map);
 	}
 
 	@Override
 	public Set<String> keySet() {
-		return toMap().keySet();
+		return snapshot().keySet();
 	}
 
 	@Override
 	public Collection<T> values() {
-		return toMap().values();
+		return snapshot().values();
 	}
 
 	@Override
 	public Set<Entry<String, T>> entrySet() {
-		return toMap().entrySet();
+		return snapshot().entrySet();
 	}
 
+	/**
+	 * The attributes of the request. They can be changed by the servlets and the filters without going through this
+	 * map, so nothing is cached: size() and containsValue() walk the names without copying the entries.
+	 */
 	public static class WebappAttributes extends WebappRequestMaps<Object> {
 
 		private final HttpServletRequest request;
@@ -134,6 +129,33 @@ public abstract class WebappRequestMaps<T> implements Map<String, T> {
 			this.request = request;
 		}
 
+		@Override
+		public int size() {
+			int i = 0;
+			final Enumeration<String> names = getNames();
+			while (names.hasMoreElements()) {
+				names.nextElement();
+				i++;
+			}
+			return i;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return !getNames().hasMoreElements();
+		}
+
+		@Override
+		public boolean containsValue(Object value) {
+			if (value == null)
+				return false;
+			final Enumeration<String> names = getNames();
+			while (names.hasMoreElements())
+				if (value.equals(getValue(names.nextElement())))
+					return true;
+			return false;
+		}
+
 		@Override
 		protected Enumeration<String> getNames() {
 			return request.getAttributeNames();
@@ -156,14 +178,26 @@ public abstract class WebappRequestMaps<T> implements Map<String, T> {
 
 	}
 
+	/**
+	 * The headers of the request. As the headers cannot change, the copy of the entries is built once.
+	 */
 	public static class WebappHeaders extends WebappRequestMaps<String> {
 
 		private final HttpServletRequest request;
+		private volatile Map<String, String> snapshot;
 
 		WebappHeaders(HttpServletRequest request) {
 			this.request = request;
 		}
 
+		@Override
+		protected Map<String, String> snapshot() {
+			Map<String, String> map = snapshot;
+			if (map == null)
+				snapshot = map = super.snapshot();
+			return map;
+		}
+
 		@Override
 		protected Enumeration<String> getNames() {
 			return request.getHeaderNames();
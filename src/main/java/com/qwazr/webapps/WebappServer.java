@@ -43,6 +43,7 @@ public class WebappServer implements BaseServer {
 
 	private final GenericServer server;
 	private final WebappServiceInterface service;
+	private final WebappManager webappManager;
 
 	public WebappServer(final ServerConfiguration configuration, final PreBuild prebuild)
 			throws IOException, ReflectiveOperationException {
@@ -84,6 +85,7 @@ public class WebappServer implements BaseServer {
 		builder.getWebServiceContext().jaxrs(webServices);
 		server = builder.build();
 		service = webappManager.getService();
+		this.webappManager = webappManager;
 	}
 
 	@Override
@@ -101,6 +103,10 @@ public class WebappServer implements BaseServer {
 		return service;
 	}
 
+	public WebappManager getWebappManager() {
+		return webappManager;
+	}
+
 	public static synchronized void main(final String... args)
 			throws IOException, ReflectiveOperationException, ServletException, JMException {
 		if (INSTANCE != null)
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.body;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolve the kind of body from the Content-Type header.
+ * The common types are matched exactly, the other ones are parsed once and kept in a bounded cache.
+ */
+final class ContentTypes {
+
+	enum Kind {
+		FORM, MULTIPART, XML, JSON, UNSUPPORTED
+	}
+
+	/**
+	 * The maximum number of cached Content-Type headers
+	 */
+	final static int MAX_CACHE_SIZE = 256;
+
+	private final static String MULTIPART_FORM_DATA = MediaType.MULTIPART_FORM_DATA;
+
+	private final static Map<String, Kind> COMMON_TYPES = Map.of(
+			MediaType.APPLICATION_FORM_URLENCODED, Kind.FORM,
+			MediaType.APPLICATION_FORM_URLENCODED + ";charset=UTF-8", Kind.FORM,
+			MediaType.APPLICATION_FORM_URLENCODED + "; charset=UTF-8", Kind.FORM,
+			MediaType.APPLICATION_JSON, Kind.JSON,
+			MediaType.APPLICATION_JSON + ";charset=UTF-8", Kind.JSON,
+			MediaType.APPLICATION_JSON + "; charset=UTF-8", Kind.JSON,
+			MediaType.APPLICATION_XML, Kind.XML);
+
+	private final static Map<String, Kind> CACHE = new ConcurrentHashMap<>();
+
+	static Kind kindOf(final String contentType) throws IOException {
+		final Kind common = COMMON_TYPES.get(contentType);
+		if (common != null)
+			return common;
+		// The boundary makes each multipart Content-Type unique, it is not cached
+		if (isMultipartFormData(contentType))
+			return Kind.MULTIPART;
+		final Kind cached = CACHE.get(contentType);
+		if (cached != null)
+			return cached;
+		final Kind kind = parse(contentType);
+		if (CACHE.size() < MAX_CACHE_SIZE)
+			CACHE.putIfAbsent(contentType, kind);
+		return kind;
+	}
+
+	/**
+	 * @return the number of cached Content-Type headers
+	 */
+	static int getCacheSize() {
+		return CACHE.size();
+	}
+
+	static String boundary(final String contentType) {
+		return MultipartStream.parseParameters(contentType).get("boundary");
+	}
+
+	private static boolean isMultipartFormData(final String contentType) {
+		final int length = MULTIPART_FORM_DATA.length();
+		if (!contentType.regionMatches(true, 0, MULTIPART_FORM_DATA, 0, length))
+			return false;
+		return contentType.length() == length || contentType.charAt(length) == ';' ||
+				contentType.charAt(length) == ' ';
+	}
+
+	private static Kind parse(final String contentType) throws IOException {
+		final MimeType mimeType;
+		try {
+			mimeType = new MimeType(contentType);
+		} catch (MimeTypeParseException e) {
+			throw new IOException(e);
+		}
+		final String type = mimeType.getBaseType();
+		if (MediaType.APPLICATION_FORM_URLENCODED.equals(type))
+			return Kind.FORM;
+		if (MULTIPART_FORM_DATA.equals(type))
+			return Kind.MULTIPART;
+		if (MediaType.APPLICATION_XML.equals(type))
+			return Kind.XML;
+		if (MediaType.APPLICATION_JSON.equals(type) || type.endsWith("+json"))
+			return Kind.JSON;
+		return Kind.UNSUPPORTED;
+	}
+}
@@ -15,11 +15,8 @@
  */
 package com.qwazr.webapps.body;
 
-import javax.activation.MimeType;
-import javax.activation.MimeTypeParseException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
-import javax.ws.rs.core.MediaType;
 import java.io.IOException;
 
 public interface HttpBodyInterface {
@@ -28,20 +25,18 @@ public interface HttpBodyInterface {
 		final String contentTypeString = request.getContentType();
 		if (contentTypeString == null)
 			return null;
-		final MimeType mimeType;
-		try {
-			mimeType = new MimeType(contentTypeString);
-		} catch (MimeTypeParseException e) {
-			throw new IOException(e);
-		}
-		final String type = mimeType.getBaseType();
-		if (MediaType.APPLICATION_FORM_URLENCODED.equals(type))
+		switch (ContentTypes.kindOf(contentTypeString)) {
+		case FORM:
 			return new FormHttpBody(request);
-		if (MediaType.MULTIPART_FORM_DATA.equals(type))
-			return new MultipartHttpBody(request);
-		if (MediaType.APPLICATION_XML.equals(type))
+		case MULTIPART:
+			return new MultipartHttpBody(request, ContentTypes.boundary(contentTypeString));
+		case XML:
 			return new XMLHttpBody(request);
-		return null;
+		case JSON:
+			return new JsonHttpBody(request);
+		default:
+			return null;
+		}
 	}
 
 }
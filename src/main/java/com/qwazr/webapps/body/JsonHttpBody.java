@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.body;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.qwazr.utils.ObjectMappers;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * A JSON body. The body can be read once, either as a tree, bound to a class, or as a stream of tokens.
+ * Once the tree has been read, it can still be bound to a class.
+ */
+public class JsonHttpBody extends InputStreamHttpBody {
+
+	private static final ObjectReader TREE_READER = ObjectMappers.JSON.readerFor(JsonNode.class);
+
+	/**
+	 * The readers are immutable and thread safe, one is kept for each bound class
+	 */
+	private static final ClassValue<ObjectReader> READERS = new ClassValue<>() {
+		@Override
+		protected ObjectReader computeValue(final Class<?> type) {
+			return ObjectMappers.JSON.readerFor(type);
+		}
+	};
+
+	private JsonNode tree;
+
+	JsonHttpBody(HttpServletRequest request) throws IOException, ServletException {
+		super(request);
+	}
+
+	/**
+	 * @return the body parsed as a tree, the tree is parsed on the first call
+	 * @throws IOException if the body is not valid JSON or if any I/O error occurs
+	 */
+	public synchronized JsonNode getTree() throws IOException {
+		if (tree == null)
+			tree = TREE_READER.readTree(inputStream);
+		return tree;
+	}
+
+	/**
+	 * @param type the class to bind to
+	 * @param <T>  the type of the returned object
+	 * @return the body bound to an instance of the class
+	 * @throws IOException if the body cannot be bound or if any I/O error occurs
+	 */
+	public synchronized <T> T getValue(final Class<T> type) throws IOException {
+		final ObjectReader reader = READERS.get(type);
+		return tree != null ? reader.readValue(tree) : reader.readValue(inputStream);
+	}
+
+	/**
+	 * Read the body as a stream of tokens, without building the tree. The parser must be closed by the caller.
+	 *
+	 * @return a new parser over the body
+	 * @throws IOException if any I/O error occurs
+	 */
+	public JsonParser getParser() throws IOException {
+		return ObjectMappers.JSON.getFactory().createParser(inputStream);
+	}
+
+}
@@ -15,22 +15,64 @@
  */
 package com.qwazr.webapps.body;
 
+import com.qwazr.server.ServerException;
+
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
 import java.io.IOException;
 import java.util.Collection;
 
+/**
+ * A multipart/form-data body. The parts can be read either buffered by the container ({@link #getParts()}), or
+ * streamed in order from the request ({@link #getPartStream()}). As both consume the request stream, only one of
+ * them can be used for a request.
+ */
 public class MultipartHttpBody implements HttpBodyInterface {
 
-	private final Collection<Part> parts;
+	private final HttpServletRequest request;
+	private final String boundary;
+	private Collection<Part> parts;
+	private MultipartStream partStream;
 
-	MultipartHttpBody(HttpServletRequest request) throws IOException, ServletException {
-		parts = request.getParts();
+	MultipartHttpBody(HttpServletRequest request, String boundary) {
+		this.request = request;
+		this.boundary = boundary;
 	}
 
-	public Collection<Part> getParts() {
+	public synchronized Collection<Part> getParts() {
+		if (parts == null) {
+			if (partStream != null)
+				throw new IllegalStateException("The parts are already streamed");
+			try {
+				parts = request.getParts();
+			} catch (IOException | ServletException e) {
+				throw ServerException.of(e);
+			}
+		}
 		return parts;
 	}
 
+	/**
+	 * @return the parts streamed from the request using the default limits
+	 * @throws IOException if the boundary is missing or if any I/O error occurs
+	 */
+	public MultipartStream getPartStream() throws IOException {
+		return getPartStream(MultipartStream.Limits.DEFAULT);
+	}
+
+	/**
+	 * @param limits the limits on the size and the number of the parts
+	 * @return the parts streamed from the request
+	 * @throws IOException if the boundary is missing or if any I/O error occurs
+	 */
+	public synchronized MultipartStream getPartStream(final MultipartStream.Limits limits) throws IOException {
+		if (partStream == null) {
+			if (parts != null)
+				throw new IllegalStateException("The parts are already read");
+			partStream = new MultipartStream(request.getInputStream(), boundary, limits);
+		}
+		return partStream;
+	}
+
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.body;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Streaming reader of a multipart/form-data body.
+ * The parts are read in order from the request stream. The content of a part is exposed as an InputStream which
+ * must be consumed before moving to the next part, otherwise the remaining content is skipped.
+ * Only a small read buffer is used, a large upload can be piped to its destination with a constant memory usage.
+ */
+public final class MultipartStream implements Iterator<MultipartStream.Part>, Closeable {
+
+	private final static int BUFFER_SIZE = 8192;
+
+	private final static byte CR = '\r';
+	private final static byte LF = '\n';
+	private final static byte DASH = '-';
+
+	public final static class Limits {
+
+		public final static long DEFAULT_MAX_PART_SIZE = Long.MAX_VALUE;
+		public final static int DEFAULT_MAX_PART_COUNT = 1000;
+		public final static int DEFAULT_MAX_HEADER_SIZE = 16384;
+
+		public final static Limits DEFAULT =
+				new Limits(DEFAULT_MAX_PART_SIZE, DEFAULT_MAX_PART_COUNT, DEFAULT_MAX_HEADER_SIZE);
+
+		final long maxPartSize;
+		final int maxPartCount;
+		final int maxHeaderSize;
+
+		/**
+		 * @param maxPartSize   the maximum size of the content of a part in bytes
+		 * @param maxPartCount  the maximum number of parts
+		 * @param maxHeaderSize the maximum size of the headers of a part in bytes
+		 */
+		public Limits(final long maxPartSize, final int maxPartCount, final int maxHeaderSize) {
+			this.maxPartSize = maxPartSize;
+			this.maxPartCount = maxPartCount;
+			this.maxHeaderSize = maxHeaderSize;
+		}
+	}
+
+	public final static class Part {
+
+		private final Map<String, String> headers;
+		private final Map<String, String> disposition;
+		private final InputStream inputStream;
+
+		private Part(final Map<String, String> headers, final InputStream inputStream) {
+			this.headers = Collections.unmodifiableMap(headers);
+			this.disposition = parseParameters(headers.get("Content-Disposition"));
+			this.inputStream = inputStream;
+		}
+
+		/**
+		 * @return the headers of the part, the names are case insensitive
+		 */
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		public String getHeader(final String name) {
+			return headers.get(name);
+		}
+
+		/**
+		 * @return the name of the form field
+		 */
+		public String getName() {
+			return disposition.get("name");
+		}
+
+		/**
+		 * @return the name of the uploaded file, or null if the part is not a file
+		 */
+		public String getFileName() {
+			return disposition.get("filename");
+		}
+
+		public String getContentType() {
+			return headers.get("Content-Type");
+		}
+
+		/**
+		 * @return the content of the part, read directly from the request
+		 */
+		public InputStream getInputStream() {
+			return inputStream;
+		}
+	}
+
+	private final InputStream input;
+	private final byte[] delimiter;
+	private final Limits limits;
+	private final byte[] buffer;
+	private int pos;
+	private int limit;
+	private boolean eof;
+	private boolean finished;
+	private int partCount;
+	private PartInputStream current;
+	private Part nextPart;
+
+	MultipartStream(final InputStream input, final String boundary, final Limits limits) throws IOException {
+		if (boundary == null || boundary.isEmpty() || boundary.length() > 70)
+			throw new IOException("Invalid multipart boundary: " + boundary);
+		this.input = input;
+		this.limits = limits == null ? Limits.DEFAULT : limits;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		// A header line must fit in the buffer
+		this.buffer = new byte[Math.max(BUFFER_SIZE, this.limits.maxHeaderSize)];
+		// The first delimiter is not preceded by a CRLF
+		buffer[0] = CR;
+		buffer[1] = LF;
+		this.pos = 0;
+		this.limit = 2;
+		this.eof = false;
+		this.finished = false;
+		this.partCount = 0;
+		// The preamble is read (and skipped) like a part
+		this.current = new PartInputStream();
+	}
+
+	/**
+	 * Read the next part. The remaining content of the current part is skipped.
+	 *
+	 * @return the next part, or null if there is no more part
+	 * @throws IOException if the stream is malformed, if a limit is exceeded, or if any I/O error occurs
+	 */
+	public Part nextPart() throws IOException {
+		if (nextPart != null) {
+			final Part part = nextPart;
+			nextPart = null;
+			return part;
+		}
+		if (finished)
+			return null;
+		current.skipAll();
+		if (!ensure(2))
+			throw new EOFException("Unexpected end of the multipart stream");
+		if (buffer[pos] == DASH && buffer[pos + 1] == DASH) {
+			// The close delimiter, the epilogue is ignored
+			finished = true;
+			return null;
+		}
+		// Transport padding after the delimiter
+		if (!readLine(limits.maxHeaderSize).trim().isEmpty())
+			throw new IOException("Malformed multipart delimiter");
+		if (++partCount > limits.maxPartCount)
+			throw new IOException("Too many parts, the limit is " + limits.maxPartCount);
+		final Map<String, String> headers = readHeaders();
+		current = new PartInputStream();
+		return new Part(headers, current);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (nextPart == null && !finished) {
+			try {
+				nextPart = nextPart();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return nextPart != null;
+	}
+
+	@Override
+	public Part next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		final Part part = nextPart;
+		nextPart = null;
+		return part;
+	}
+
+	/**
+	 * Stop reading the parts. The request stream is not closed.
+	 */
+	@Override
+	public void close() {
+		finished = true;
+		nextPart = null;
+	}
+
+	private Map<String, String> readHeaders() throws IOException {
+		final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		int remaining = limits.maxHeaderSize;
+		String lastName = null;
+		for (; ; ) {
+			final int start = pos;
+			final String line = readLine(remaining);
+			remaining -= pos - start;
+			if (line.isEmpty())
+				return headers;
+			if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && lastName != null) {
+				// Folded header
+				headers.merge(lastName, line.trim(), (previous, value) -> previous + ' ' + value);
+				continue;
+			}
+			final int colon = line.indexOf(':');
+			if (colon <= 0)
+				throw new IOException("Malformed part header: " + line);
+			lastName = line.substring(0, colon).trim();
+			headers.put(lastName, line.substring(colon + 1).trim());
+		}
+	}
+
+	/**
+	 * Read a line terminated by CRLF
+	 *
+	 * @param maxSize the maximum size of the line (including the CRLF)
+	 * @return the line without the CRLF
+	 */
+	private String readLine(final int maxSize) throws IOException {
+		int searchFrom = pos;
+		for (; ; ) {
+			for (int i = searchFrom; i < limit - 1; i++) {
+				if (buffer[i] == CR && buffer[i + 1] == LF) {
+					if (i + 2 - pos > maxSize)
+						throw new IOException("The part headers exceed the limit of " + limits.maxHeaderSize);
+					final String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+					pos = i + 2;
+					return line;
+				}
+			}
+			if (limit - pos >= maxSize || limit - pos >= buffer.length)
+				throw new IOException("The part headers exceed the limit of " + limits.maxHeaderSize);
+			searchFrom = Math.max(pos, limit - 1) - pos;
+			if (!fill())
+				throw new EOFException("Unexpected end of the multipart stream");
+			searchFrom += pos;
+		}
+	}
+
+	private boolean ensure(final int count) throws IOException {
+		while (limit - pos < count)
+			if (!fill())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Move the unread bytes to the beginning of the buffer and read more bytes
+	 *
+	 * @return false if the end of the stream has been reached
+	 */
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		final int read = input.read(buffer, limit, buffer.length - limit);
+		if (read == -1) {
+			eof = true;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	private int indexOfDelimiter() {
+		final int last = limit - delimiter.length;
+		next:
+		for (int i = pos; i <= last; i++) {
+			for (int j = 0; j < delimiter.length; j++)
+				if (buffer[i + j] != delimiter[j])
+					continue next;
+			return i;
+		}
+		return -1;
+	}
+
+	private final class PartInputStream extends InputStream {
+
+		private long size;
+		private boolean ended;
+
+		/**
+		 * The end of the bytes known to be part of the content, so the buffer is not searched again for each byte
+		 */
+		private int safeEnd;
+
+		/**
+		 * @return the number of bytes which can be read before the delimiter, or -1 at the end of the part
+		 */
+		private int available(final boolean block) throws IOException {
+			if (ended)
+				return -1;
+			if (safeEnd > pos)
+				return safeEnd - pos;
+			for (; ; ) {
+				final int index = indexOfDelimiter();
+				if (index == pos) {
+					ended = true;
+					pos += delimiter.length;
+					return -1;
+				}
+				if (index != -1) {
+					safeEnd = index;
+					return index - pos;
+				}
+				// The end of the buffer may be the beginning of the delimiter
+				final int available = limit - pos - (delimiter.length - 1);
+				if (available > 0 || !block) {
+					safeEnd = pos + Math.max(available, 0);
+					return Math.max(available, 0);
+				}
+				if (!fill())
+					throw new EOFException("Unexpected end of the multipart stream");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (available(true) == -1)
+				return -1;
+			count(1);
+			return buffer[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int off, final int len) throws IOException {
+			if (len == 0)
+				return 0;
+			final int available = available(true);
+			if (available == -1)
+				return -1;
+			final int length = Math.min(len, available);
+			count(length);
+			System.arraycopy(buffer, pos, bytes, off, length);
+			pos += length;
+			return length;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return Math.max(available(false), 0);
+		}
+
+		private void count(final int length) throws IOException {
+			size += length;
+			if (size > limits.maxPartSize)
+				throw new IOException("The part exceeds the size limit of " + limits.maxPartSize);
+		}
+
+		private void skipAll() throws IOException {
+			int available;
+			while ((available = available(true)) != -1)
+				pos += available;
+		}
+	}
+
+	/**
+	 * Parse the parameters of a header like Content-Disposition: form-data; name="field"; filename="a.txt"
+	 */
+	static Map<String, String> parseParameters(final String header) {
+		if (header == null)
+			return Collections.emptyMap();
+		final Map<String, String> parameters = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		int i = header.indexOf(';');
+		final int length = header.length();
+		while (i != -1 && i < length) {
+			i++;
+			final int equal = header.indexOf('=', i);
+			if (equal == -1)
+				break;
+			final String name = header.substring(i, equal).trim();
+			final StringBuilder value = new StringBuilder();
+			i = equal + 1;
+			while (i < length && header.charAt(i) == ' ')
+				i++;
+			if (i < length && header.charAt(i) == '"') {
+				i++;
+				while (i < length && header.charAt(i) != '"') {
+					final char c = header.charAt(i++);
+					if (c == '\\' && i < length)
+						value.append(header.charAt(i++));
+					else
+						value.append(c);
+				}
+				i = header.indexOf(';', i);
+			} else {
+				final int end = header.indexOf(';', i);
+				value.append(header, i, end == -1 ? length : end);
+				i = end;
+			}
+			parameters.put(name, value.toString().trim());
+		}
+		return parameters;
+	}
+}
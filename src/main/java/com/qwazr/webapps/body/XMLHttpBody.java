@@ -26,7 +26,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,20 +39,82 @@ public class XMLHttpBody extends InputStreamHttpBody {
 
 	private static final Logger logger = LoggerUtils.getLogger(XMLHttpBody.class);
 
+	/**
+	 * The maximum number of idle DocumentBuilders kept for each combination of options
+	 */
+	private static final int MAX_IDLE_BUILDERS = 16;
+
+	/**
+	 * The factory lookup is expensive, one factory is kept for each combination of (validating, namespaceAware).
+	 */
+	private static final DocumentBuilderFactory[] FACTORIES = new DocumentBuilderFactory[4];
+
+	@SuppressWarnings("unchecked")
+	private static final BlockingQueue<DocumentBuilder>[] BUILDERS = new BlockingQueue[FACTORIES.length];
+
+	static {
+		for (int i = 0; i < FACTORIES.length; i++) {
+			FACTORIES[i] = DocumentBuilderFactory.newInstance();
+			FACTORIES[i].setValidating((i & 2) != 0);
+			FACTORIES[i].setNamespaceAware((i & 1) != 0);
+			BUILDERS[i] = new ArrayBlockingQueue<>(MAX_IDLE_BUILDERS);
+		}
+	}
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+
+	private static XMLInputFactory newXmlInputFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
 	XMLHttpBody(HttpServletRequest request) throws IOException, ServletException {
 		super(request);
 	}
 
+	private static int index(final Boolean validating, final Boolean namespaceAware) {
+		return (Boolean.TRUE.equals(validating) ? 2 : 0) | (Boolean.TRUE.equals(namespaceAware) ? 1 : 0);
+	}
+
+	/**
+	 * @return the number of DocumentBuilders waiting in the pool for this combination of options
+	 */
+	static int getIdleBuilders(final Boolean validating, final Boolean namespaceAware) {
+		return BUILDERS[index(validating, namespaceAware)].size();
+	}
+
 	public Document getDom(Boolean validating, Boolean namespaceAware)
 			throws IOException, SAXException, ParserConfigurationException {
-		final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		if (namespaceAware)
-			documentBuilderFactory.setNamespaceAware(namespaceAware);
-		if (validating)
-			documentBuilderFactory.setValidating(validating);
-		DocumentBuilder builder = documentBuilderFactory.newDocumentBuilder();
+		final int index = index(validating, namespaceAware);
+		final BlockingQueue<DocumentBuilder> pool = BUILDERS[index];
+		DocumentBuilder builder = pool.poll();
+		if (builder == null) {
+			final DocumentBuilderFactory factory = FACTORIES[index];
+			// A factory is not guaranteed to be thread safe
+			synchronized (factory) {
+				builder = factory.newDocumentBuilder();
+			}
+		}
 		builder.setErrorHandler(ToolErrorHandler.INSTANCE);
-		return builder.parse(inputStream);
+		try {
+			return builder.parse(inputStream);
+		} finally {
+			builder.reset();
+			pool.offer(builder);
+		}
+	}
+
+	/**
+	 * Read the body as a stream of XML events, without building the DOM.
+	 * The reader must be closed by the caller (the request stream is not closed).
+	 *
+	 * @return a new reader over the body
+	 * @throws XMLStreamException if the reader cannot be created
+	 */
+	public XMLStreamReader getXMLStreamReader() throws XMLStreamException {
+		return XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
 	}
 
 	private static class ToolErrorHandler implements ErrorHandler {
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CloseableFilterTest {
+
+	private static ServletRequest request(final Map<String, Object> attributes) {
+		return (ServletRequest) Proxy.newProxyInstance(CloseableFilterTest.class.getClassLoader(),
+				new Class<?>[] { ServletRequest.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						attributes.put((String) args[0], args[1]);
+						return null;
+					case "removeAttribute":
+						attributes.remove(args[0]);
+						return null;
+					default:
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void closedByTheOutermostPass() throws IOException, ServletException {
+		final Map<String, Object> attributes = new HashMap<>();
+		final ServletRequest request = request(attributes);
+		final CloseableFilter filter = new CloseableFilter();
+		final AtomicInteger closed = new AtomicInteger();
+		filter.doFilter(request, null, (req, rep) -> {
+			// Nothing is created until a resource is added
+			final CloseableFilter.Lazy lazy = new CloseableFilter.Lazy(req);
+			Assert.assertTrue(attributes.isEmpty());
+			lazy.add(closed::incrementAndGet);
+			// A forward does not close the resources of the forwarding servlet
+			filter.doFilter(req, rep, (forwardReq, forwardRep) -> CloseableFilter.getCloseables(forwardReq)
+					.add(closed::incrementAndGet));
+			Assert.assertEquals(0, closed.get());
+		});
+		Assert.assertEquals(2, closed.get());
+		Assert.assertTrue(attributes.isEmpty());
+	}
+
+	@Test
+	public void nothingCreated() throws IOException, ServletException {
+		final Map<String, Object> attributes = new HashMap<>();
+		new CloseableFilter().doFilter(request(attributes), null, (req, rep) -> {
+		});
+		Assert.assertTrue(attributes.isEmpty());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusedOutsideTheFilter() {
+		CloseableFilter.getCloseables(request(new HashMap<>()));
+	}
+}
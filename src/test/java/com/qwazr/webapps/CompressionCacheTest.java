@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+public class CompressionCacheTest {
+
+	private final static byte[] CONTENT = "Hello World! ".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+	private static byte[] gunzip(final byte[] data) throws IOException {
+		try (final InputStream input = new GZIPInputStream(new ByteArrayInputStream(data))) {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			input.transferTo(output);
+			return output.toByteArray();
+		}
+	}
+
+	@Test
+	public void cachedByEtag() throws IOException {
+		final CompressionCache cache = new CompressionCache(1024 * 1024);
+		final AtomicInteger opens = new AtomicInteger();
+		final CompressionCache.ContentSource source = () -> {
+			opens.incrementAndGet();
+			return new ByteArrayInputStream(CONTENT);
+		};
+		final byte[] data = cache.getOrCompress("file.txt.gz", "etag1", source, CONTENT.length);
+		Assert.assertArrayEquals(CONTENT, gunzip(data));
+		Assert.assertSame(data, cache.getOrCompress("file.txt.gz", "etag1", source, CONTENT.length));
+		Assert.assertEquals(1, opens.get());
+		// A modified file is compressed again
+		cache.getOrCompress("file.txt.gz", "etag2", source, CONTENT.length);
+		Assert.assertEquals(2, opens.get());
+		Assert.assertEquals(1, cache.getCount());
+	}
+
+	@Test
+	public void concurrentMissesCompressOnce() throws Exception {
+		final CompressionCache cache = new CompressionCache(1024 * 1024);
+		final AtomicInteger opens = new AtomicInteger();
+		final CountDownLatch opened = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CompressionCache.ContentSource source = () -> {
+			opens.incrementAndGet();
+			opened.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new ByteArrayInputStream(CONTENT);
+		};
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final Callable<byte[]> request = () -> cache.getOrCompress("file.txt.gz", "etag", source, CONTENT.length);
+			final List<Future<byte[]>> results = new ArrayList<>();
+			results.add(executor.submit(request));
+			Assert.assertTrue(opened.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < 3; i++)
+				results.add(executor.submit(request));
+			Thread.sleep(100);
+			release.countDown();
+			final byte[] first = results.get(0).get(10, TimeUnit.SECONDS);
+			for (final Future<byte[]> result : results)
+				Assert.assertSame(first, result.get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(1, opens.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void failedCompressionIsRetried() throws IOException {
+		final CompressionCache cache = new CompressionCache(1024 * 1024);
+		final AtomicInteger opens = new AtomicInteger();
+		final CompressionCache.ContentSource source = () -> {
+			if (opens.incrementAndGet() == 1)
+				throw new IOException("Cannot read the file");
+			return new ByteArrayInputStream(CONTENT);
+		};
+		try {
+			cache.getOrCompress("file.txt.gz", "etag", source, CONTENT.length);
+			Assert.fail("The compression should have failed");
+		} catch (IOException e) {
+			// Expected
+		}
+		Assert.assertEquals(0, cache.getCount());
+		Assert.assertArrayEquals(CONTENT,
+				gunzip(cache.getOrCompress("file.txt.gz", "etag", source, CONTENT.length)));
+	}
+
+	@Test
+	public void evictedBySize() throws IOException {
+		final CompressionCache.ContentSource source = () -> new ByteArrayInputStream(CONTENT);
+		final byte[] compressed =
+				new CompressionCache(1024 * 1024).getOrCompress("probe.gz", "etag", source, CONTENT.length);
+		// Room for three variants
+		final CompressionCache cache = new CompressionCache(compressed.length * 3 + 1);
+		for (int i = 0; i < 10; i++)
+			cache.getOrCompress("file" + i + ".txt.gz", "etag", source, CONTENT.length);
+		Assert.assertTrue(cache.getSize() <= compressed.length * 3 + 1);
+		Assert.assertTrue(cache.getCount() <= 3);
+		Assert.assertTrue(cache.getCount() > 0);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class GraalJavascriptEngineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void checkAvailable() {
+		Assume.assumeTrue(GraalJavascriptEngine.isAvailable());
+	}
+
+	private JavascriptSource source(final String name, final String code) throws IOException {
+		final Path path = folder.getRoot().toPath().resolve(name);
+		Files.write(path, code.getBytes(StandardCharsets.UTF_8));
+		return new JavascriptSource(path, Files.getLastModifiedTime(path).toMillis(), 0);
+	}
+
+	@Test
+	public void globalsAreNotShared() throws IOException, ScriptException, InterruptedException {
+		final JavascriptSource first = source("first.js", "var declared = 'first';\n" + "let scoped = 'first';\n" +
+				"function helper() { return 'first'; }\n" + "implicit = 'first';\n" + "result.add(marker);");
+		final JavascriptSource second = source("second.js",
+				"result.add(typeof declared);\n" + "result.add(typeof scoped);\n" + "result.add(typeof helper);\n" +
+						"result.add(typeof implicit);\n" + "result.add(typeof marker);");
+		try (final ScriptEnginePool pool = new ScriptEnginePool(ScriptEnginePool.Mode.FIXED, 1,
+				ScriptEnginePool.DEFAULT_CHECKOUT_TIMEOUT_MS, new GraalJavascriptEngine())) {
+			final List<String> firstResult = new ArrayList<>();
+			final List<String> secondResult = new ArrayList<>();
+			final JavascriptEngine.Instance instance = pool.acquire();
+			try {
+				instance.eval(first, Map.of("result", firstResult, "marker", "first request"));
+			} finally {
+				pool.release(instance);
+			}
+			// The same pooled instance runs the second request
+			final JavascriptEngine.Instance sameInstance = pool.acquire();
+			try {
+				Assert.assertSame(instance, sameInstance);
+				sameInstance.eval(second, Map.of("result", secondResult));
+				// The same controller can be evaluated again (a top-level let is not declared twice)
+				sameInstance.eval(first, Map.of("result", firstResult, "marker", "third request"));
+			} finally {
+				pool.release(sameInstance);
+			}
+			Assert.assertEquals(List.of("first request", "third request"), firstResult);
+			Assert.assertEquals(List.of("undefined", "undefined", "undefined", "undefined", "undefined"),
+					secondResult);
+			Assert.assertEquals(2, pool.getCompilations());
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+public class LogSessionStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final static long EXPIRATION = Long.MAX_VALUE;
+
+	private Path getPath() {
+		return folder.getRoot().toPath().resolve("test.sessions");
+	}
+
+	@Test
+	public void writeReadRoundTrip() throws IOException {
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("s1", EXPIRATION, Map.of("name", "value", "count", 42));
+			store.write("s2", EXPIRATION, Map.of("other", "value"));
+			store.write("s1", EXPIRATION, Map.of("name", "replaced"));
+			Assert.assertEquals(Map.of("name", "replaced"), store.read("s1", null));
+		}
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			Assert.assertEquals(Map.of("s1", EXPIRATION, "s2", EXPIRATION), store.index());
+			Assert.assertEquals(Map.of("name", "replaced"), store.read("s1", null));
+			Assert.assertEquals(Map.of("other", "value"), store.read("s2", null));
+			Assert.assertNull(store.read("unknown", null));
+		}
+	}
+
+	@Test
+	public void expiredSession() throws IOException {
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("expired", System.currentTimeMillis() - 1000, Map.of("name", "value"));
+			Assert.assertTrue(store.index().isEmpty());
+			Assert.assertNull(store.read("expired", null));
+		}
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			Assert.assertTrue(store.index().isEmpty());
+		}
+	}
+
+	@Test
+	public void tombstone() throws IOException {
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("s1", EXPIRATION, Map.of("name", "value"));
+			store.write("s2", EXPIRATION, Map.of("name", "value"));
+			store.delete("s1");
+			Assert.assertNull(store.read("s1", null));
+		}
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			Assert.assertEquals(Map.of("s2", EXPIRATION), store.index());
+			Assert.assertNull(store.read("s1", null));
+		}
+	}
+
+	@Test
+	public void truncatedTailRecovery() throws IOException {
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("s1", EXPIRATION, Map.of("name", "first"));
+			store.write("s2", EXPIRATION, Map.of("name", "second"));
+		}
+		// Simulate a crash during the write of the last record
+		final long size = Files.size(getPath());
+		try (final FileChannel channel = FileChannel.open(getPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(size - 10);
+		}
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			Assert.assertEquals(Map.of("s1", EXPIRATION), store.index());
+			Assert.assertEquals(Map.of("name", "first"), store.read("s1", null));
+			store.write("s3", EXPIRATION, Map.of("name", "third"));
+		}
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			Assert.assertEquals(Map.of("s1", EXPIRATION, "s3", EXPIRATION), store.index());
+			Assert.assertEquals(Map.of("name", "third"), store.read("s3", null));
+		}
+	}
+
+	@Test
+	public void unknownRecordFailsTheOpen() throws IOException {
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("s1", EXPIRATION, Map.of("name", "first"));
+		}
+		final long validSize = Files.size(getPath());
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("s2", EXPIRATION, Map.of("name", "second"));
+		}
+		// Overwrite the type of the second record
+		try (final FileChannel channel = FileChannel.open(getPath(), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 99 }), validSize);
+		}
+		final byte[] corrupted = Files.readAllBytes(getPath());
+		try {
+			new LogSessionStore(getPath()).close();
+			Assert.fail("The corrupted log should not be opened");
+		} catch (IOException e) {
+			Assert.assertFalse(e instanceof EOFException);
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("unknown record type 99"));
+		}
+		// The following records are not dropped
+		Assert.assertArrayEquals(corrupted, Files.readAllBytes(getPath()));
+	}
+
+	@Test
+	public void previousFormat() throws IOException {
+		final Path directory = folder.getRoot().toPath();
+		Assert.assertTrue(LogSessionStore.findPreviousFormat(directory.resolve("missing")).isEmpty());
+		try (final SessionStore store = LogSessionStore.factory(directory).open("deployment")) {
+			store.write("s1", EXPIRATION, Map.of("name", "value"));
+			store.compact();
+		}
+		Assert.assertTrue(LogSessionStore.findPreviousFormat(directory).isEmpty());
+		final Path previous = Files.createDirectory(directory.resolve("deployment"));
+		Files.write(previous.resolve("session-id"), new byte[] { 1, 2, 3 });
+		Assert.assertEquals(List.of(previous), LogSessionStore.findPreviousFormat(directory));
+		// The previous files are reported, not deleted
+		try (final SessionStore store = LogSessionStore.factory(directory).open("deployment")) {
+			Assert.assertEquals(Map.of("s1", EXPIRATION), store.index());
+		}
+		Assert.assertTrue(Files.exists(previous.resolve("session-id")));
+	}
+
+	@Test
+	public void compaction() throws IOException {
+		final byte[] payload = new byte[100_000];
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("kept", EXPIRATION, Map.of("name", "kept"));
+			// Replace the same session until the log is mostly made of replaced versions
+			for (int i = 0; i < 20; i++)
+				store.write("replaced", EXPIRATION, Map.of("payload", payload, "version", i));
+			store.write("deleted", EXPIRATION, Map.of("payload", payload));
+			store.delete("deleted");
+			final long size = Files.size(getPath());
+			Assert.assertTrue(size >= LogSessionStore.MIN_COMPACT_SIZE);
+			store.compact();
+			Assert.assertTrue(Files.size(getPath()) * 5 < size);
+			Assert.assertEquals(Map.of("name", "kept"), store.read("kept", null));
+			Assert.assertEquals(19, store.read("replaced", null).get("version"));
+			// The store is still writable after the compaction
+			store.write("after", EXPIRATION, Map.of("name", "after"));
+		}
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			Assert.assertEquals(Map.of("kept", EXPIRATION, "replaced", EXPIRATION, "after", EXPIRATION),
+					store.index());
+			Assert.assertEquals(Map.of("name", "after"), store.read("after", null));
+			Assert.assertEquals(19, store.read("replaced", null).get("version"));
+		}
+		Assert.assertFalse(Files.exists(getPath().resolveSibling("test.sessions.compact")));
+	}
+
+	@Test
+	public void clear() throws IOException {
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			store.write("s1", EXPIRATION, Map.of("name", "value"));
+			store.clear();
+			Assert.assertTrue(store.index().isEmpty());
+		}
+		try (final LogSessionStore store = new LogSessionStore(getPath())) {
+			Assert.assertTrue(store.index().isEmpty());
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RewriteFilterTest {
+
+	/**
+	 * Count the evaluations of the rules
+	 */
+	private final static class CountingRewriteFilter extends RewriteFilter {
+
+		private final AtomicInteger evaluations = new AtomicInteger();
+
+		@Override
+		Outcome evaluate(final String reqUrl) {
+			evaluations.incrementAndGet();
+			return super.evaluate(reqUrl);
+		}
+	}
+
+	/**
+	 * What happened to a request going through the filter
+	 */
+	private final static class Result {
+
+		private boolean chained;
+		private String forward;
+		private int status;
+		private final Map<String, String> headers = new HashMap<>();
+	}
+
+	private static <T extends RewriteFilter> T filter(final T filter, final String... params) {
+		final Map<String, String> parameters = new HashMap<>();
+		for (int i = 0; i < params.length; i += 2)
+			parameters.put(params[i], params[i + 1]);
+		filter.init((FilterConfig) Proxy.newProxyInstance(RewriteFilterTest.class.getClassLoader(),
+				new Class<?>[] { FilterConfig.class }, (proxy, method, args) -> method.getName()
+						.equals("getInitParameter") ? parameters.get((String) args[0]) : null));
+		return filter;
+	}
+
+	private static Result doFilter(final RewriteFilter filter, final String url, final String queryString)
+			throws IOException, ServletException {
+		final Result result = new Result();
+		final Map<String, Object> requestValues = new HashMap<>();
+		requestValues.put("getRequestURL", new StringBuffer(url));
+		requestValues.put("getQueryString", queryString);
+		final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+				RewriteFilterTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				(proxy, method, args) -> {
+					if (method.getName().equals("getRequestDispatcher"))
+						return Proxy.newProxyInstance(RewriteFilterTest.class.getClassLoader(),
+								new Class<?>[] { RequestDispatcher.class }, (dispatcher, forward, forwardArgs) -> {
+									result.forward = (String) args[0];
+									return null;
+								});
+					return requestValues.get(method.getName());
+				});
+		final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+				RewriteFilterTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				(proxy, method, args) -> {
+					if (method.getName().equals("setStatus"))
+						result.status = (Integer) args[0];
+					else if (method.getName().equals("setHeader"))
+						result.headers.put((String) args[0], (String) args[1]);
+					return null;
+				});
+		filter.doFilter(request, response, (req, rep) -> result.chained = true);
+		return result;
+	}
+
+	@Test
+	public void noMatch() throws IOException, ServletException {
+		final Result result = doFilter(filter(new RewriteFilter(), RewriteFilter.PARAM_PATTERN, "/old/(.*)",
+				RewriteFilter.PARAM_REPLACE, "/new/$1"), "http://localhost/other/page", null);
+		Assert.assertTrue(result.chained);
+		Assert.assertNull(result.forward);
+		Assert.assertEquals(0, result.status);
+	}
+
+	@Test
+	public void forward() throws IOException, ServletException {
+		final Result result = doFilter(filter(new RewriteFilter(), RewriteFilter.PARAM_PATTERN, "^.*/old/(.*)$",
+				RewriteFilter.PARAM_REPLACE, "/new/$1"), "http://localhost/old/page", "a=1");
+		Assert.assertFalse(result.chained);
+		Assert.assertEquals("/new/page", result.forward);
+		Assert.assertEquals(0, result.status);
+	}
+
+	private static void checkRedirect(final int status) throws IOException, ServletException {
+		final RewriteFilter filter = filter(new RewriteFilter(), RewriteFilter.PARAM_RULES,
+				"^http://localhost/old/(.*)$ http://localhost/new/$1 " + status + "\n" +
+						"^http://localhost/query/(.*)$ http://localhost/new?page=$1 " + status);
+
+		Result result = doFilter(filter, "http://localhost/old/page", null);
+		Assert.assertFalse(result.chained);
+		Assert.assertNull(result.forward);
+		Assert.assertEquals(status, result.status);
+		Assert.assertEquals("http://localhost/new/page", result.headers.get("Location"));
+
+		// The cached outcome does not keep the query string of a previous request
+		result = doFilter(filter, "http://localhost/old/page", "a=1&b=2");
+		Assert.assertEquals(status, result.status);
+		Assert.assertEquals("http://localhost/new/page?a=1&b=2", result.headers.get("Location"));
+
+		result = doFilter(filter, "http://localhost/query/page", "a=1");
+		Assert.assertEquals(status, result.status);
+		Assert.assertEquals("http://localhost/new?page=page&a=1", result.headers.get("Location"));
+	}
+
+	@Test
+	public void redirect301() throws IOException, ServletException {
+		checkRedirect(301);
+	}
+
+	@Test
+	public void redirect302() throws IOException, ServletException {
+		checkRedirect(302);
+	}
+
+	@Test
+	public void redirect308() throws IOException, ServletException {
+		checkRedirect(308);
+	}
+
+	@Test
+	public void defaultRedirect() throws IOException, ServletException {
+		final Result result = doFilter(filter(new RewriteFilter(), RewriteFilter.PARAM_PATTERN, "/old/",
+				RewriteFilter.PARAM_REPLACE, "/new/", RewriteFilter.PARAM_REDIRECT, "302"), "http://localhost/old/",
+				null);
+		Assert.assertEquals(302, result.status);
+		Assert.assertEquals("http://localhost/new/", result.headers.get("Location"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedRedirect() {
+		filter(new RewriteFilter(), RewriteFilter.PARAM_RULES, "/old/ /new/ 303");
+	}
+
+	@Test
+	public void cacheHits() throws IOException, ServletException {
+		final CountingRewriteFilter filter = filter(new CountingRewriteFilter(), RewriteFilter.PARAM_PATTERN,
+				"^.*/old/(.*)$", RewriteFilter.PARAM_REPLACE, "/new/$1");
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals("/new/page", doFilter(filter, "http://localhost/old/page", null).forward);
+			Assert.assertTrue(doFilter(filter, "http://localhost/other", null).chained);
+		}
+		// One evaluation per distinct URL, the non matching URLs are cached too
+		Assert.assertEquals(2, filter.evaluations.get());
+	}
+
+	@Test
+	public void disabledCache() throws IOException, ServletException {
+		final CountingRewriteFilter filter = filter(new CountingRewriteFilter(), RewriteFilter.PARAM_PATTERN,
+				"/old/", RewriteFilter.PARAM_REPLACE, "/new/", RewriteFilter.PARAM_CACHE_SIZE, "0");
+		for (int i = 0; i < 3; i++)
+			doFilter(filter, "http://localhost/old/", null);
+		Assert.assertEquals(3, filter.evaluations.get());
+	}
+
+	@Test
+	public void fullCacheIsEmptied() throws IOException, ServletException {
+		final CountingRewriteFilter filter = filter(new CountingRewriteFilter(), RewriteFilter.PARAM_PATTERN,
+				"/old/", RewriteFilter.PARAM_REPLACE, "/new/", RewriteFilter.PARAM_CACHE_SIZE, "2");
+		doFilter(filter, "http://localhost/a", null);
+		doFilter(filter, "http://localhost/b", null);
+		doFilter(filter, "http://localhost/c", null);
+		doFilter(filter, "http://localhost/c", null);
+		Assert.assertEquals(3, filter.evaluations.get());
+	}
+
+	@Test
+	public void requiredLiteral() {
+		Assert.assertEquals("/old/", RewriteFilter.requiredLiteral("^/old/(.*)$"));
+		Assert.assertEquals("/old/", RewriteFilter.requiredLiteral("/old/"));
+		Assert.assertNull(RewriteFilter.requiredLiteral(".*/old/"));
+		Assert.assertNull(RewriteFilter.requiredLiteral(""));
+	}
+
+	@Test
+	public void requiredLiteralEscapes() {
+		Assert.assertEquals("/index.html", RewriteFilter.requiredLiteral("/index\\.html$"));
+		Assert.assertEquals("/a+b", RewriteFilter.requiredLiteral("^/a\\+b"));
+		// An escaped letter or digit is a character class or a back reference
+		Assert.assertEquals("/page", RewriteFilter.requiredLiteral("/page\\d+"));
+		Assert.assertNull(RewriteFilter.requiredLiteral("\\w+/old"));
+		Assert.assertEquals("/a", RewriteFilter.requiredLiteral("/a\\"));
+	}
+
+	@Test
+	public void requiredLiteralQuantifier() {
+		// The quantified character is optional or repeated, it is not part of the literal
+		Assert.assertEquals("/ol", RewriteFilter.requiredLiteral("/old?/"));
+		Assert.assertEquals("/ol", RewriteFilter.requiredLiteral("/old*"));
+		Assert.assertEquals("/ol", RewriteFilter.requiredLiteral("/old+"));
+		Assert.assertEquals("/ol", RewriteFilter.requiredLiteral("/old{2}"));
+		Assert.assertEquals("/a", RewriteFilter.requiredLiteral("/a\\.?b"));
+		Assert.assertNull(RewriteFilter.requiredLiteral("a?/old"));
+	}
+
+	@Test
+	public void requiredLiteralAlternationAndFlags() {
+		Assert.assertNull(RewriteFilter.requiredLiteral("/old|/new"));
+		Assert.assertNull(RewriteFilter.requiredLiteral("^/(old|new)/"));
+		Assert.assertNull(RewriteFilter.requiredLiteral("(?i)/old/"));
+		// The literal must not prevent a case insensitive match
+		Assert.assertEquals("/new/page", new RewriteFilter.Rule("(?i)/OLD/(.*)", "/new/$1", 0).apply("/old/page"));
+	}
+
+	@Test
+	public void evaluateRuleOrder() {
+		final RewriteFilter filter = filter(new RewriteFilter(), RewriteFilter.PARAM_RULES,
+				"# The first matching rule is applied\n" +
+						"^/a/(.*)$ /first/$1\n" +
+						"^/a/b$ /second 301\n" +
+						"^/same$ /same\n" +
+						"^/(.*)$ /last/$1 302");
+
+		RewriteFilter.Outcome outcome = filter.evaluate("/a/b");
+		Assert.assertEquals("/first/b", outcome.target);
+		Assert.assertEquals(0, outcome.status);
+
+		outcome = filter.evaluate("/other");
+		Assert.assertEquals("/last/other", outcome.target);
+		Assert.assertEquals(302, outcome.status);
+
+		// A rule which does not change the URL stops the evaluation
+		Assert.assertSame(RewriteFilter.Outcome.NO_MATCH, filter.evaluate("/same"));
+	}
+
+	@Test
+	public void patternRuleComesFirst() {
+		final RewriteFilter filter = filter(new RewriteFilter(), RewriteFilter.PARAM_PATTERN, "^/a$",
+				RewriteFilter.PARAM_REPLACE, "/pattern", RewriteFilter.PARAM_RULES, "^/a$ /rules");
+		Assert.assertEquals("/pattern", filter.evaluate("/a").target);
+		Assert.assertEquals("/rules", filter(new RewriteFilter(), RewriteFilter.PARAM_RULES, "^/a$ /rules")
+				.evaluate("/a").target);
+	}
+}
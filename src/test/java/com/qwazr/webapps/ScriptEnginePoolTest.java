@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ScriptEnginePoolTest {
+
+	/**
+	 * An engine which counts the created and closed instances
+	 */
+	static class FakeEngine implements JavascriptEngine {
+
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final boolean threadSafe;
+
+		FakeEngine(final boolean threadSafe) {
+			this.threadSafe = threadSafe;
+		}
+
+		@Override
+		public String getName() {
+			return "fake";
+		}
+
+		@Override
+		public boolean isThreadSafe() {
+			return threadSafe;
+		}
+
+		@Override
+		public Instance newInstance() {
+			if (failures.getAndUpdate(f -> Math.max(0, f - 1)) > 0)
+				throw new IllegalStateException("Cannot create the instance");
+			created.incrementAndGet();
+			return new Instance() {
+				@Override
+				public void eval(JavascriptSource source, Map<String, Object> variables) {
+				}
+
+				@Override
+				public void close() {
+					closed.incrementAndGet();
+				}
+			};
+		}
+	}
+
+	@Test
+	public void fixedTimeout() throws InterruptedException {
+		final FakeEngine engine = new FakeEngine(false);
+		try (final ScriptEnginePool pool = new ScriptEnginePool(ScriptEnginePool.Mode.FIXED, 1, 50, engine)) {
+			final JavascriptEngine.Instance instance = pool.acquire();
+			Assert.assertNotNull(instance);
+			Assert.assertNull(pool.acquire());
+			Assert.assertEquals(1, pool.getSaturations());
+			Assert.assertEquals(1, pool.getTimeouts());
+			Assert.assertEquals(1, pool.getActive());
+			pool.release(instance);
+			Assert.assertSame(instance, pool.acquire());
+			Assert.assertEquals(1, engine.created.get());
+			pool.release(instance);
+		}
+		Assert.assertEquals(1, engine.closed.get());
+	}
+
+	@Test
+	public void fixedTimeoutReturns503() throws IOException, ServletException, InterruptedException {
+		final FakeEngine engine = new FakeEngine(false);
+		try (final ScriptEnginePool pool = new ScriptEnginePool(ScriptEnginePool.Mode.FIXED, 1, 10, engine)) {
+			final JavascriptEngine.Instance instance = pool.acquire();
+			final AtomicReference<Integer> status = new AtomicReference<>();
+			final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+					(proxy, method, args) -> null);
+			final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+					(proxy, method, args) -> {
+						if ("sendError".equals(method.getName()))
+							status.set((Integer) args[0]);
+						return null;
+					});
+			new JavascriptServlet(pool, null, Paths.get("controller.js")).doGet(request, response);
+			Assert.assertEquals(Integer.valueOf(HttpServletResponse.SC_SERVICE_UNAVAILABLE), status.get());
+			pool.release(instance);
+		}
+	}
+
+	@Test
+	public void fixedSlotReturnedAfterFailure() throws InterruptedException {
+		final FakeEngine engine = new FakeEngine(false);
+		engine.failures.set(1);
+		try (final ScriptEnginePool pool = new ScriptEnginePool(ScriptEnginePool.Mode.FIXED, 1, 50, engine)) {
+			try {
+				pool.acquire();
+				Assert.fail("The creation should have failed");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+			// The slot is free again: the instance is created without waiting
+			Assert.assertNotNull(pool.acquire());
+			Assert.assertEquals(0, pool.getSaturations());
+			Assert.assertEquals(1, engine.created.get());
+		}
+	}
+
+	private static JavascriptEngine.Instance acquireInThread(final ScriptEnginePool pool)
+			throws InterruptedException {
+		final AtomicReference<JavascriptEngine.Instance> instance = new AtomicReference<>();
+		final Thread thread = new Thread(() -> {
+			try {
+				instance.set(pool.acquire());
+				pool.release(instance.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		thread.start();
+		thread.join();
+		return instance.get();
+	}
+
+	@Test
+	public void threadLocal() throws InterruptedException {
+		final FakeEngine engine = new FakeEngine(false);
+		try (final ScriptEnginePool pool = new ScriptEnginePool(ScriptEnginePool.Mode.THREAD_LOCAL, 1, 50, engine)) {
+			final JavascriptEngine.Instance instance = pool.acquire();
+			pool.release(instance);
+			Assert.assertSame(instance, pool.acquire());
+			pool.release(instance);
+			Assert.assertEquals(1, pool.getInstances());
+
+			// Another thread gets its own instance
+			final JavascriptEngine.Instance other = acquireInThread(pool);
+			Assert.assertNotNull(other);
+			Assert.assertNotSame(instance, other);
+			Assert.assertEquals(2, pool.getInstances());
+			Assert.assertEquals(0, engine.closed.get());
+
+			// The instance of the ended thread is closed when the next instance is created
+			acquireInThread(pool);
+			Assert.assertEquals(1, engine.closed.get());
+			Assert.assertEquals(2, pool.getInstances());
+		}
+		Assert.assertEquals(3, engine.closed.get());
+	}
+
+	@Test
+	public void sharedFallsBackToThreadLocal() {
+		final FakeEngine engine = new FakeEngine(false);
+		try (final ScriptEnginePool pool = new ScriptEnginePool(ScriptEnginePool.Mode.SHARED, 1, 50, engine)) {
+			Assert.assertEquals(ScriptEnginePool.Mode.THREAD_LOCAL, pool.getMode());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import io.undertow.server.session.Session;
+import io.undertow.servlet.spec.HttpSessionImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import java.lang.reflect.Proxy;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compare the session attribute map with the previous implementation, which walked the attribute enumeration
+ * and copied the attributes on each call.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SessionAttributesBenchmark {
+
+	@Param({ "10", "50", "200" })
+	public int attributes;
+
+	private HttpSession httpSession;
+	private Map<String, Object> attributesMap;
+	private Object lastValue;
+
+	@Setup
+	public void setup() {
+		final Map<String, Object> store = new ConcurrentHashMap<>();
+		final Session session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(),
+				new Class<?>[] { Session.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getId":
+						return "benchmark";
+					case "getAttribute":
+						return store.get(args[0]);
+					case "getAttributeNames":
+						return store.keySet();
+					case "setAttribute":
+						return store.put((String) args[0], args[1]);
+					case "removeAttribute":
+						return store.remove(args[0]);
+					default:
+						return null;
+					}
+				});
+		httpSession = HttpSessionImpl.forSession(session, null, false);
+		final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				(proxy, method, args) -> "getSession".equals(method.getName()) ? httpSession : null);
+		attributesMap = new WebappHttpRequestImpl(request, null).getLazySession().getAttributes();
+		for (int i = 0; i < attributes; i++) {
+			lastValue = "value" + i;
+			attributesMap.put("attribute" + i, lastValue);
+		}
+	}
+
+	@Benchmark
+	public int legacySize() {
+		int i = 0;
+		final Enumeration<String> e = httpSession.getAttributeNames();
+		while (e.hasMoreElements()) {
+			e.nextElement();
+			i++;
+		}
+		return i;
+	}
+
+	@Benchmark
+	public int size() {
+		return attributesMap.size();
+	}
+
+	@Benchmark
+	public void legacyEntrySet(final Blackhole blackhole) {
+		final LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+		final Enumeration<String> e = httpSession.getAttributeNames();
+		while (e.hasMoreElements()) {
+			final String key = e.nextElement();
+			map.put(key, httpSession.getAttribute(key));
+		}
+		for (final Map.Entry<String, Object> entry : map.entrySet())
+			blackhole.consume(entry.getValue());
+	}
+
+	@Benchmark
+	public void entrySet(final Blackhole blackhole) {
+		for (final Map.Entry<String, Object> entry : attributesMap.entrySet())
+			blackhole.consume(entry.getValue());
+	}
+
+	@Benchmark
+	public boolean containsValue() {
+		return attributesMap.containsValue(lastValue);
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(SessionAttributesBenchmark.class.getSimpleName()).build()).run();
+	}
+}
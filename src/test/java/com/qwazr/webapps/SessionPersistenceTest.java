@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import io.undertow.servlet.api.SessionPersistenceManager;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionPersistenceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void lazyRestore() throws IOException {
+		final SessionStore.Factory factory = LogSessionStore.factory(folder.getRoot().toPath());
+		final long expiration = System.currentTimeMillis() + 60_000;
+		try (final SessionStore store = factory.open("deployment")) {
+			store.write("s1", expiration, Map.of("name", "value"));
+			store.write("s2", expiration, Map.of("name", "other"));
+		}
+
+		final AtomicInteger reads = new AtomicInteger();
+		final SessionStore.Factory countingFactory = deploymentName -> {
+			final SessionStore store = factory.open(deploymentName);
+			return new SessionStore() {
+
+				@Override
+				public Map<String, Long> index() throws IOException {
+					return store.index();
+				}
+
+				@Override
+				public Map<String, Object> read(final String sessionId, final ClassLoader classLoader)
+						throws IOException {
+					reads.incrementAndGet();
+					return store.read(sessionId, classLoader);
+				}
+
+				@Override
+				public void write(final String sessionId, final long expiration,
+						final Map<String, Object> attributes) throws IOException {
+					store.write(sessionId, expiration, attributes);
+				}
+
+				@Override
+				public void delete(final String sessionId) throws IOException {
+					store.delete(sessionId);
+				}
+
+				@Override
+				public void clear() throws IOException {
+					store.clear();
+				}
+
+				@Override
+				public void close() throws IOException {
+					store.close();
+				}
+			};
+		};
+
+		final SessionPersistence persistence = new SessionPersistence(countingFactory, 60_000);
+		try {
+			final Map<String, SessionPersistenceManager.PersistentSession> sessions =
+					persistence.loadSessionAttributes("deployment", getClass().getClassLoader());
+			Assert.assertEquals(2, sessions.size());
+			// Only the index has been loaded
+			Assert.assertEquals(0, reads.get());
+			final SessionPersistenceManager.PersistentSession session = sessions.get("s1");
+			Assert.assertEquals(expiration, session.getExpiration().getTime());
+			Assert.assertEquals(Map.of("name", "value"), session.getSessionData());
+			Assert.assertEquals(1, reads.get());
+		} finally {
+			persistence.close();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import com.qwazr.library.LibraryServiceInterface;
+import com.qwazr.library.annotations.Library;
+import com.qwazr.library.asciidoctor.AsciiDoctorTool;
+import com.qwazr.library.freemarker.FreeMarkerTool;
+import com.qwazr.library.markdown.MarkdownTool;
+import com.qwazr.server.GenericServer;
+import com.qwazr.server.ServerException;
+import com.qwazr.server.configuration.ServerConfiguration;
+import com.qwazr.utils.reflection.ConstructorParametersImpl;
+import com.qwazr.webapps.example.DocumentationServlet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SmartFactoryTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private ExecutorService executorService;
+	private ConstructorParametersImpl constructorParameters;
+
+	@Before
+	public void setup() throws IOException {
+		executorService = Executors.newSingleThreadExecutor();
+		constructorParameters = (ConstructorParametersImpl) GenericServer.of(ServerConfiguration.of()
+				.data(temporaryFolder.newFolder().toPath())
+				.publicAddress("localhost")
+				.listenAddress("localhost")
+				.build(), executorService).getConstructorParameters();
+	}
+
+	@After
+	public void cleanup() {
+		executorService.shutdownNow();
+	}
+
+	public static class WithParameter {
+
+		final String value;
+
+		public WithParameter() {
+			this(null);
+		}
+
+		public WithParameter(final String value) {
+			this.value = value;
+		}
+	}
+
+	public static class WithoutMatchingConstructor {
+
+		public WithoutMatchingConstructor(final Integer value) {
+		}
+	}
+
+	@Test
+	public void constructorResolvedUntilFrozen() throws InstantiationException {
+		final SmartFactory<WithParameter> factory = SmartFactory.from(null, constructorParameters, WithParameter.class);
+		Assert.assertNull(factory.createInstance().getInstance().value);
+		// Before the webapp is built, a new parameter is taken into account
+		constructorParameters.registerConstructorParameter("first");
+		Assert.assertEquals("first", factory.createInstance().getInstance().value);
+		factory.freeze();
+		Assert.assertEquals("first", factory.createInstance().getInstance().value);
+		Assert.assertNotSame(factory.createInstance().getInstance(), factory.createInstance().getInstance());
+	}
+
+	@Test
+	public void frozenBeforeTheParameterIsRegistered() throws InstantiationException {
+		final SmartFactory<WithParameter> factory = SmartFactory.from(null, constructorParameters, WithParameter.class);
+		factory.freeze();
+		constructorParameters.registerConstructorParameter("ignored");
+		Assert.assertNull(factory.createInstance().getInstance().value);
+	}
+
+	@Test(expected = ServerException.class)
+	public void noMatchingConstructorFailsTheBuild() {
+		SmartFactory.from(null, constructorParameters, WithoutMatchingConstructor.class).freeze();
+	}
+
+	/**
+	 * A library service which only provides getLibrary, so the libraries can only be injected by the plan
+	 */
+	private static LibraryServiceInterface libraryService(final Map<String, Object> libraries) {
+		return (LibraryServiceInterface) Proxy.newProxyInstance(SmartFactoryTest.class.getClassLoader(),
+				new Class<?>[] { LibraryServiceInterface.class }, (proxy, method, args) -> {
+					if ("getLibrary".equals(method.getName()))
+						return libraries.get(args[0]);
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+
+	private static Object getField(final Object instance, final String name) throws ReflectiveOperationException {
+		final Field field = instance.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(instance);
+	}
+
+	@Test
+	public void documentationServletLibraries() throws ReflectiveOperationException {
+		final Map<String, Object> libraries = new HashMap<>();
+		libraries.put("freemarker", new FreeMarkerTool());
+		libraries.put("markdown", new MarkdownTool());
+		libraries.put("adoc", new AsciiDoctorTool());
+		final DocumentationServlet servlet = new DocumentationServlet();
+		SmartFactory.InjectionPlan.of(DocumentationServlet.class).inject(libraryService(libraries), servlet);
+		Assert.assertSame(libraries.get("freemarker"), getField(servlet, "freemarkerTool"));
+		Assert.assertSame(libraries.get("markdown"), getField(servlet, "markdownTool"));
+		Assert.assertSame(libraries.get("adoc"), getField(servlet, "asciiDoctorTool"));
+	}
+
+	public static class WithLibraries {
+
+		@Library("markdown")
+		private final MarkdownTool markdownTool = null;
+
+		@Library("missing")
+		private Object missing = "default";
+	}
+
+	@Test
+	public void missingLibraryLeavesTheField() throws ReflectiveOperationException {
+		final WithLibraries instance = new WithLibraries();
+		SmartFactory.InjectionPlan.of(WithLibraries.class).inject(libraryService(new HashMap<>()), instance);
+		Assert.assertNull(getField(instance, "markdownTool"));
+		Assert.assertEquals("default", getField(instance, "missing"));
+	}
+
+	@Test
+	public void mismatchingLibraryIsRejected() {
+		final Map<String, Object> libraries = new HashMap<>();
+		libraries.put("markdown", "not a markdown tool");
+		try {
+			SmartFactory.InjectionPlan.of(WithLibraries.class).inject(libraryService(libraries), new WithLibraries());
+			Assert.fail("The library should have been rejected");
+		} catch (ServerException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("markdownTool"));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.qwazr.utils.ObjectMappers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class StaticDefinitionTest {
+
+	private static JsonNode toTree(final StaticDefinition definition) throws IOException {
+		return ObjectMappers.JSON.readTree(ObjectMappers.JSON.writeValueAsString(definition));
+	}
+
+	@Test
+	public void pathOnlyIsWrittenAsString() throws IOException {
+		final StaticDefinition definition = ObjectMappers.JSON.readValue("\"css\"", StaticDefinition.class);
+		Assert.assertEquals("css", definition.path);
+		Assert.assertEquals(TextNode.valueOf("css"), toTree(definition));
+		// An object which only carries the path is also written back as a simple path
+		Assert.assertEquals(TextNode.valueOf("css"),
+				toTree(ObjectMappers.JSON.readValue("{\"path\":\"css\"}", StaticDefinition.class)));
+	}
+
+	@Test
+	public void optionsAreWrittenAsObject() throws IOException {
+		final String json = "{\"path\":\"css\",\"sendfile_threshold\":0,\"precompressed\":true}";
+		final StaticDefinition definition = ObjectMappers.JSON.readValue(json, StaticDefinition.class);
+		Assert.assertEquals(0L, definition.getSendfileThreshold());
+		Assert.assertTrue(definition.isPrecompressed());
+		Assert.assertEquals(ObjectMappers.JSON.readTree(json), toTree(definition));
+		Assert.assertEquals(definition,
+				ObjectMappers.JSON.readValue(ObjectMappers.JSON.writeValueAsString(definition),
+						StaticDefinition.class));
+	}
+
+	@Test
+	public void equalsAndHashCode() {
+		final StaticDefinition definition = StaticDefinition.of().path("css").compression(true).build();
+		final StaticDefinition same = StaticDefinition.of().path("css").compression(true).build();
+		Assert.assertEquals(definition, same);
+		Assert.assertEquals(definition.hashCode(), same.hashCode());
+		Assert.assertNotEquals(definition, StaticDefinition.of().path("css").build());
+		Assert.assertNotEquals(definition, StaticDefinition.of().path("js").compression(true).build());
+		Assert.assertEquals(StaticDefinition.of("css"), StaticDefinition.of().path("css").build());
+	}
+}
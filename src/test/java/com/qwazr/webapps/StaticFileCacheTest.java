@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class StaticFileCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file(final String name, final String content) throws IOException {
+		final Path path = folder.getRoot().toPath().resolve(name);
+		Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+		return path;
+	}
+
+	private static StaticFileCache.Entry put(final StaticFileCache cache, final Path path) throws IOException {
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return cache.put(path, "text/plain", Files.size(path), path.toFile().lastModified(), "etag", channel,
+					cache.getGeneration());
+		}
+	}
+
+	@Test
+	public void hitAndMiss() throws IOException {
+		final StaticFileCache cache = new StaticFileCache(1000, 100, 10, false);
+		final Path path = file("a.txt", "content");
+		Assert.assertNull(cache.get(path));
+		put(cache, path);
+		final StaticFileCache.Entry entry = cache.get(path);
+		Assert.assertNotNull(entry);
+		Assert.assertTrue(entry.hasContent());
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		entry.write(0, entry.length, output);
+		Assert.assertEquals("content", output.toString(StandardCharsets.UTF_8));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(7, cache.getSize());
+		Assert.assertEquals(1, cache.getCount());
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() throws IOException, InterruptedException {
+		final StaticFileCache cache = new StaticFileCache(1000, 100, 8, false);
+		final Path[] paths = new Path[8];
+		for (int i = 0; i < paths.length; i++) {
+			paths[i] = file(i + ".txt", "file" + i);
+			put(cache, paths[i]);
+			Thread.sleep(1);
+		}
+		// The first file is used again, the second one becomes the least recently used
+		Assert.assertNotNull(cache.get(paths[0]));
+		put(cache, file("new.txt", "new"));
+		Assert.assertTrue(cache.getCount() <= 8);
+		Assert.assertNotNull(cache.get(paths[0]));
+		Assert.assertNull(cache.get(paths[1]));
+	}
+
+	@Test
+	public void sizeBound() throws IOException {
+		final StaticFileCache cache = new StaticFileCache(16, 16, 100, false);
+		put(cache, file("a.txt", "0123456789"));
+		put(cache, file("b.txt", "0123456789"));
+		Assert.assertTrue(cache.getSize() <= 16);
+		Assert.assertEquals(1, cache.getCount());
+	}
+
+	@Test
+	public void invalidate() throws IOException {
+		final StaticFileCache cache = new StaticFileCache(1000, 100, 10, false);
+		final Path path = file("a.txt", "content");
+		final long generation = cache.getGeneration();
+		put(cache, path);
+		cache.invalidate(folder.getRoot().toPath());
+		Assert.assertNull(cache.get(path));
+		Assert.assertEquals(0, cache.getSize());
+		// An entry built before the change is not cached
+		try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			cache.put(path, "text/plain", 7, 0, "etag", channel, generation);
+		}
+		Assert.assertEquals(0, cache.getCount());
+	}
+
+	@Test
+	public void modifiedFileNotWatched() throws IOException {
+		final StaticFileCache cache = new StaticFileCache(1000, 100, 10, false);
+		final Path path = file("a.txt", "content");
+		put(cache, path);
+		Assert.assertTrue(path.toFile().setLastModified(path.toFile().lastModified() - 10000));
+		Assert.assertNull(cache.get(path));
+		Assert.assertEquals(0, cache.getCount());
+	}
+}
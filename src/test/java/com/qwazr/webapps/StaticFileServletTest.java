@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class StaticFileServletTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static class BytesOutputStream extends ServletOutputStream {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(final WriteListener writeListener) {
+		}
+
+		@Override
+		public void write(final int b) {
+			bytes.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			bytes.write(b, off, len);
+		}
+	}
+
+	private Path createFile(final int length) throws IOException {
+		final byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return Files.write(temporaryFolder.newFile().toPath(), content);
+	}
+
+	/**
+	 * Outside of Undertow, the file channel is transferred to the stream of the response
+	 */
+	@Test
+	public void sendFileToStream() throws IOException {
+		for (final int length : new int[] { 0, 1, 8192, 1024 * 1024 + 17 }) {
+			final Path file = createFile(length);
+			final BytesOutputStream out = new BytesOutputStream();
+			try (final FileChannel channel = FileChannel.open(file)) {
+				StaticFileServlet.sendFile(channel, out);
+				// The position of the channel is not used
+				Assert.assertEquals(0, channel.position());
+			}
+			Assert.assertArrayEquals(Files.readAllBytes(file), out.bytes.toByteArray());
+		}
+	}
+
+	@Test
+	public void transferPart() throws IOException {
+		final Path file = createFile(100000);
+		final byte[] content = Files.readAllBytes(file);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (final FileChannel channel = FileChannel.open(file)) {
+			StaticFileServlet.transfer(channel, 1000, 50000, out);
+		}
+		final byte[] part = new byte[50000];
+		System.arraycopy(content, 1000, part, 0, part.length);
+		Assert.assertArrayEquals(part, out.toByteArray());
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class WebappHttpSessionTest {
+
+	private final AtomicInteger createdSessions = new AtomicInteger();
+	private final AtomicReference<HttpSession> currentSession = new AtomicReference<>();
+	private final AtomicBoolean committed = new AtomicBoolean();
+
+	private HttpSession newSession() {
+		final Map<String, Object> store = new LinkedHashMap<>();
+		createdSessions.incrementAndGet();
+		return (HttpSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpSession.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getId":
+						return "session";
+					case "getAttribute":
+						return store.get(args[0]);
+					case "getAttributeNames":
+						return Collections.enumeration(store.keySet());
+					case "setAttribute":
+						store.put((String) args[0], args[1]);
+						return null;
+					case "removeAttribute":
+						store.remove(args[0]);
+						return null;
+					default:
+						return null;
+					}
+				});
+	}
+
+	private WebappHttpRequestImpl request() {
+		final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getSession":
+						if (currentSession.get() == null && (args == null || (Boolean) args[0]))
+							currentSession.set(newSession());
+						return currentSession.get();
+					case "getRequestURI":
+						return "/test";
+					default:
+						return null;
+					}
+				});
+		final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				(proxy, method, args) -> "isCommitted".equals(method.getName()) ? committed.get() : null);
+		return new WebappHttpRequestImpl(request, response);
+	}
+
+	@Test
+	public void readingDoesNotCreateTheSession() {
+		final WebappHttpRequestImpl request = request();
+		final WebappHttpSessionImpl session = request.getLazySession();
+		Assert.assertNull(session.getAttribute("name"));
+		Assert.assertFalse(session.isAttribute("name"));
+		Assert.assertFalse(session.getAttributeNames().hasMoreElements());
+		Assert.assertEquals(0, session.getValueNames().length);
+		final Map<String, Object> attributes = session.getAttributes();
+		Assert.assertTrue(attributes.isEmpty());
+		Assert.assertEquals(0, attributes.size());
+		Assert.assertFalse(attributes.containsKey("name"));
+		Assert.assertFalse(attributes.containsValue("value"));
+		Assert.assertFalse(attributes.entrySet().iterator().hasNext());
+		Assert.assertNull(attributes.remove("name"));
+		session.removeAttribute("name");
+		session.setAttribute("name", null);
+		session.invalidate();
+		Assert.assertNull(request.getSession(false));
+		Assert.assertEquals(0, createdSessions.get());
+	}
+
+	@Test
+	public void writingCreatesTheSession() {
+		final WebappHttpRequestImpl request = request();
+		final WebappHttpSessionImpl session = request.getLazySession();
+		session.getAttributes().put("name", "value");
+		Assert.assertEquals(1, createdSessions.get());
+		Assert.assertEquals("value", session.getAttribute("name"));
+		Assert.assertSame(session, request.getSession(false));
+		session.setAttribute("other", "value2");
+		Assert.assertEquals(2, session.getAttributes().size());
+		Assert.assertEquals(1, createdSessions.get());
+	}
+
+	@Test
+	public void committedResponse() {
+		final WebappHttpRequestImpl request = request();
+		final WebappHttpSessionImpl session = request.getLazySession();
+		committed.set(true);
+		// Reading is still possible
+		Assert.assertNull(session.getAttribute("name"));
+		Assert.assertTrue(session.getAttributes().isEmpty());
+		try {
+			session.setAttribute("name", "value");
+			Assert.fail("The session should not be created once the response is committed");
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("/test"));
+		}
+		try {
+			session.getId();
+			Assert.fail("The session should not be created once the response is committed");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		Assert.assertEquals(0, createdSessions.get());
+	}
+
+	@Test
+	public void existingSessionAfterCommit() {
+		final WebappHttpRequestImpl request = request();
+		final WebappHttpSessionImpl session = request.getLazySession();
+		session.setAttribute("name", "value");
+		committed.set(true);
+		// The session already exists, its cookie has been sent
+		session.setAttribute("name", "value2");
+		Assert.assertEquals("value2", session.getAttribute("name"));
+		Assert.assertEquals("session", session.getId());
+		Assert.assertEquals(1, createdSessions.get());
+	}
+}
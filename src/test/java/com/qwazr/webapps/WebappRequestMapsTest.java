@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class WebappRequestMapsTest {
+
+	/**
+	 * @param store the attributes of the request
+	 * @return a request backed by the given attributes
+	 */
+	private static HttpServletRequest request(final Map<String, Object> store) {
+		return (HttpServletRequest) Proxy.newProxyInstance(WebappRequestMapsTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getAttribute":
+						return store.get(args[0]);
+					case "getAttributeNames":
+						return Collections.enumeration(store.keySet());
+					case "setAttribute":
+						store.put((String) args[0], args[1]);
+						return null;
+					case "removeAttribute":
+						store.remove(args[0]);
+						return null;
+					default:
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void attributes() {
+		final Map<String, Object> store = new LinkedHashMap<>();
+		final HttpServletRequest servletRequest = request(store);
+		final WebappHttpRequestImpl request = new WebappHttpRequestImpl(servletRequest, null);
+		final Map<String, Object> attributes = request.getAttributes();
+		Assert.assertTrue(attributes.isEmpty());
+		Assert.assertEquals(0, attributes.size());
+
+		// Through the request wrapper
+		request.setAttribute("a", "1");
+		Assert.assertEquals(1, attributes.size());
+		Assert.assertEquals("1", attributes.get("a"));
+
+		// Through the map
+		attributes.put("b", "2");
+		Assert.assertEquals("2", servletRequest.getAttribute("b"));
+		Assert.assertEquals("2", request.getAttribute("b"));
+		Assert.assertEquals(2, attributes.size());
+
+		// Through the servlet request, without going through the wrapper
+		servletRequest.setAttribute("c", "3");
+		Assert.assertEquals(3, attributes.size());
+		Assert.assertTrue(attributes.containsValue("3"));
+		Assert.assertEquals(Set.of("a", "b", "c"), attributes.keySet());
+
+		request.removeAttribute("a");
+		Assert.assertEquals(2, attributes.size());
+		Assert.assertNull(attributes.get("a"));
+		Assert.assertFalse(attributes.containsValue("1"));
+
+		attributes.remove("b");
+		Assert.assertNull(servletRequest.getAttribute("b"));
+		servletRequest.removeAttribute("c");
+		Assert.assertEquals(0, attributes.size());
+		Assert.assertTrue(attributes.isEmpty());
+
+		attributes.put("d", "4");
+		attributes.put("e", "5");
+		attributes.clear();
+		Assert.assertTrue(store.isEmpty());
+	}
+}
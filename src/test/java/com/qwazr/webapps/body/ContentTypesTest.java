@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.body;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ContentTypesTest {
+
+	@Test
+	public void commonTypes() throws IOException {
+		Assert.assertEquals(ContentTypes.Kind.JSON, ContentTypes.kindOf("application/json"));
+		Assert.assertEquals(ContentTypes.Kind.JSON, ContentTypes.kindOf("application/json; charset=UTF-8"));
+		Assert.assertEquals(ContentTypes.Kind.FORM, ContentTypes.kindOf("application/x-www-form-urlencoded"));
+		Assert.assertEquals(ContentTypes.Kind.XML, ContentTypes.kindOf("application/xml"));
+		Assert.assertEquals(ContentTypes.Kind.MULTIPART, ContentTypes.kindOf("multipart/form-data; boundary=XyZ"));
+		Assert.assertEquals(ContentTypes.Kind.UNSUPPORTED, ContentTypes.kindOf("text/plain"));
+	}
+
+	@Test
+	public void charsetParameters() throws IOException {
+		Assert.assertEquals(ContentTypes.Kind.JSON, ContentTypes.kindOf("application/json;charset=ISO-8859-1"));
+		Assert.assertEquals(ContentTypes.Kind.JSON, ContentTypes.kindOf("application/json; charset=\"utf-8\""));
+		Assert.assertEquals(ContentTypes.Kind.XML, ContentTypes.kindOf("application/xml; charset=UTF-16"));
+		Assert.assertEquals(ContentTypes.Kind.FORM,
+				ContentTypes.kindOf("application/x-www-form-urlencoded; charset=ISO-8859-1"));
+		Assert.assertEquals(ContentTypes.Kind.JSON, ContentTypes.kindOf("application/vnd.api+json; charset=UTF-8"));
+	}
+
+	@Test
+	public void caseInsensitive() throws IOException {
+		Assert.assertEquals(ContentTypes.Kind.JSON, ContentTypes.kindOf("Application/JSON"));
+		Assert.assertEquals(ContentTypes.Kind.JSON, ContentTypes.kindOf("APPLICATION/JSON; CHARSET=UTF-8"));
+		Assert.assertEquals(ContentTypes.Kind.XML, ContentTypes.kindOf("Application/Xml"));
+		Assert.assertEquals(ContentTypes.Kind.MULTIPART, ContentTypes.kindOf("Multipart/Form-Data; boundary=XyZ"));
+		Assert.assertEquals(ContentTypes.Kind.MULTIPART, ContentTypes.kindOf("MULTIPART/FORM-DATA"));
+		// A longer subtype is not multipart/form-data
+		Assert.assertEquals(ContentTypes.Kind.UNSUPPORTED, ContentTypes.kindOf("multipart/form-datax"));
+	}
+
+	@Test
+	public void boundary() {
+		Assert.assertEquals("XyZ", ContentTypes.boundary("multipart/form-data; boundary=XyZ"));
+		Assert.assertEquals("XyZ", ContentTypes.boundary("multipart/form-data; BOUNDARY=XyZ; charset=UTF-8"));
+		Assert.assertEquals("a;b=c", ContentTypes.boundary("multipart/form-data; boundary=\"a;b=c\""));
+		Assert.assertEquals("a\"b",
+				ContentTypes.boundary("multipart/form-data; boundary=\"a\\\"b\"; charset=UTF-8"));
+		Assert.assertNull(ContentTypes.boundary("multipart/form-data"));
+	}
+
+	@Test(expected = IOException.class)
+	public void malformed() throws IOException {
+		ContentTypes.kindOf("malformed");
+	}
+
+	@Test
+	public void cacheIsBounded() throws IOException {
+		for (int i = 0; i < ContentTypes.MAX_CACHE_SIZE * 2; i++)
+			Assert.assertEquals(ContentTypes.Kind.JSON,
+					ContentTypes.kindOf("application/x-test-" + i + "+json; charset=UTF-8"));
+		Assert.assertTrue(ContentTypes.getCacheSize() <= ContentTypes.MAX_CACHE_SIZE);
+		// The types which are no more cached are still resolved
+		Assert.assertEquals(ContentTypes.Kind.UNSUPPORTED, ContentTypes.kindOf("text/x-not-cached"));
+		Assert.assertTrue(ContentTypes.getCacheSize() <= ContentTypes.MAX_CACHE_SIZE);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.body;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MultipartHttpBodyTest {
+
+	private final static String BODY =
+			"--XyZ\r\nContent-Disposition: form-data; name=\"first\"\r\n\r\none\r\n--XyZ--\r\n";
+
+	private static ServletInputStream inputStream(final String content) {
+		final ByteArrayInputStream input = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+		return new ServletInputStream() {
+
+			@Override
+			public boolean isFinished() {
+				return input.available() == 0;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setReadListener(final ReadListener readListener) {
+			}
+
+			@Override
+			public int read() {
+				return input.read();
+			}
+		};
+	}
+
+	/**
+	 * @param getParts counts the calls to request.getParts()
+	 */
+	private static HttpServletRequest request(final AtomicInteger getParts) {
+		final ServletInputStream input = inputStream(BODY);
+		return (HttpServletRequest) Proxy.newProxyInstance(MultipartHttpBodyTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getInputStream":
+						return input;
+					case "getParts":
+						getParts.incrementAndGet();
+						return Collections.emptyList();
+					default:
+						return null;
+					}
+				});
+	}
+
+	@Test
+	public void streamThenGetParts() throws IOException {
+		final AtomicInteger getParts = new AtomicInteger();
+		final MultipartHttpBody body = new MultipartHttpBody(request(getParts), "XyZ");
+		final MultipartStream parts = body.getPartStream();
+		Assert.assertEquals("first", parts.nextPart().getName());
+		// The same stream is returned
+		Assert.assertSame(parts, body.getPartStream());
+		try {
+			body.getParts();
+			Assert.fail("getParts should be refused");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("The parts are already streamed", e.getMessage());
+		}
+		// The container has not been asked to read the consumed stream
+		Assert.assertEquals(0, getParts.get());
+		Assert.assertNull(parts.nextPart());
+	}
+
+	@Test
+	public void getPartsThenStream() throws IOException {
+		final AtomicInteger getParts = new AtomicInteger();
+		final MultipartHttpBody body = new MultipartHttpBody(request(getParts), "XyZ");
+		Assert.assertTrue(body.getParts().isEmpty());
+		Assert.assertSame(body.getParts(), body.getParts());
+		Assert.assertEquals(1, getParts.get());
+		try {
+			body.getPartStream();
+			Assert.fail("getPartStream should be refused");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("The parts are already read", e.getMessage());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void missingBoundary() throws IOException {
+		new MultipartHttpBody(request(new AtomicInteger()), null).getPartStream();
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.body;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MultipartStreamTest {
+
+	private final static String BOUNDARY = "XyZ";
+
+	/**
+	 * Return the bytes by chunks ending at the given positions
+	 */
+	private static class ChunkedInputStream extends InputStream {
+
+		private final byte[] bytes;
+		private final int[] splits;
+		private int pos;
+
+		private ChunkedInputStream(final String content, final int... splits) {
+			this.bytes = content.getBytes(StandardCharsets.UTF_8);
+			this.splits = splits;
+		}
+
+		@Override
+		public int read() {
+			return pos < bytes.length ? bytes[pos++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (pos >= bytes.length)
+				return -1;
+			int end = bytes.length;
+			for (final int split : splits)
+				if (split > pos) {
+					end = split;
+					break;
+				}
+			final int length = Math.min(len, end - pos);
+			System.arraycopy(bytes, pos, b, off, length);
+			pos += length;
+			return length;
+		}
+	}
+
+	private static String part(final String name, final String content) {
+		return "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + content +
+				"\r\n";
+	}
+
+	private static String body(final String... parts) {
+		return String.join("", parts) + "--" + BOUNDARY + "--\r\n";
+	}
+
+	private static MultipartStream stream(final InputStream input, final MultipartStream.Limits limits)
+			throws IOException {
+		return new MultipartStream(input, BOUNDARY, limits);
+	}
+
+	private static List<String> readAll(final MultipartStream stream) throws IOException {
+		final List<String> contents = new ArrayList<>();
+		MultipartStream.Part part;
+		while ((part = stream.nextPart()) != null)
+			contents.add(part.getName() + '=' +
+					new String(part.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+		return contents;
+	}
+
+	@Test
+	public void boundarySplitAcrossFills() throws IOException {
+		final String body = body(part("a", "first"), part("b", "second"));
+		// Split in the middle of the delimiter which ends the first part
+		final int split = body.indexOf("\r\n--" + BOUNDARY, body.indexOf("first")) + 4;
+		Assert.assertEquals(List.of("a=first", "b=second"),
+				readAll(stream(new ChunkedInputStream(body, split), null)));
+	}
+
+	@Test
+	public void preambleAndEpilogue() throws IOException {
+		final String body = "This is the preamble\r\n" + body(part("a", "value")) + "This is the epilogue";
+		Assert.assertEquals(List.of("a=value"), readAll(stream(new ChunkedInputStream(body), null)));
+	}
+
+	@Test
+	public void emptyPart() throws IOException {
+		final String body = body(part("empty", ""), part("b", "value"));
+		Assert.assertEquals(List.of("empty=", "b=value"), readAll(stream(new ChunkedInputStream(body), null)));
+	}
+
+	@Test
+	public void headersAndFileName() throws IOException {
+		final String body = "--" + BOUNDARY +
+				"\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a \\\"b\\\".txt\"\r\n" +
+				"Content-Type: text/plain\r\n\r\ncontent\r\n--" + BOUNDARY + "--";
+		final MultipartStream stream = stream(new ChunkedInputStream(body), null);
+		Assert.assertTrue(stream.hasNext());
+		final MultipartStream.Part part = stream.next();
+		Assert.assertEquals("file", part.getName());
+		Assert.assertEquals("a \"b\".txt", part.getFileName());
+		Assert.assertEquals("text/plain", part.getHeader("content-type"));
+		Assert.assertFalse(stream.hasNext());
+	}
+
+	@Test
+	public void byteWiseRead() throws IOException {
+		final String content = "x".repeat(100000);
+		final MultipartStream stream =
+				stream(new ChunkedInputStream(body(part("a", content)), 10000, 20000), null);
+		final InputStream input = stream.nextPart().getInputStream();
+		int count = 0;
+		while (input.read() != -1)
+			count++;
+		Assert.assertEquals(content.length(), count);
+		Assert.assertNull(stream.nextPart());
+	}
+
+	@Test(expected = EOFException.class)
+	public void missingFinalBoundary() throws IOException {
+		final String body = part("a", "value") + part("b", "truncated");
+		readAll(stream(new ChunkedInputStream(body.substring(0, body.length() - 2)), null));
+	}
+
+	private static void assertLimit(final MultipartStream.Limits limits, final String message) {
+		final String body = body(part("a", "0123456789"), part("b", "0123456789"), part("c", "0123456789"));
+		try {
+			readAll(stream(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), limits));
+			Assert.fail("The limit has not been enforced");
+		} catch (IOException e) {
+			Assert.assertEquals(message, e.getMessage());
+		}
+	}
+
+	@Test
+	public void partSizeLimit() {
+		assertLimit(new MultipartStream.Limits(5, 10, 1000), "The part exceeds the size limit of 5");
+	}
+
+	@Test
+	public void partCountLimit() {
+		assertLimit(new MultipartStream.Limits(1000, 2, 1000), "Too many parts, the limit is 2");
+	}
+
+	@Test
+	public void headerSizeLimit() {
+		assertLimit(new MultipartStream.Limits(1000, 10, 20), "The part headers exceed the limit of 20");
+	}
+
+	@Test
+	public void defaultHeaderSizeLimit() throws IOException {
+		// A header larger than the read buffer but below the default limit
+		final String name = "n".repeat(12000);
+		Assert.assertEquals(List.of(name + "=value"),
+				readAll(stream(new ChunkedInputStream(body(part(name, "value"))), null)));
+	}
+}
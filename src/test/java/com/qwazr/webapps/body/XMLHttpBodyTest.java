@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.body;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class XMLHttpBodyTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static XMLHttpBody body(final String content) throws IOException, ServletException {
+		final ByteArrayInputStream input = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+		final ServletInputStream servletInput = new ServletInputStream() {
+
+			@Override
+			public boolean isFinished() {
+				return input.available() == 0;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setReadListener(final ReadListener readListener) {
+			}
+
+			@Override
+			public int read() {
+				return input.read();
+			}
+		};
+		return new XMLHttpBody((HttpServletRequest) Proxy.newProxyInstance(XMLHttpBodyTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				(proxy, method, args) -> "getInputStream".equals(method.getName()) ? servletInput : null));
+	}
+
+	@Test
+	public void domBuildersArePooled()
+			throws IOException, ServletException, SAXException, ParserConfigurationException {
+		final String xml = "<root xmlns=\"urn:test\"><item>one</item></root>";
+		Document document = body(xml).getDom(false, true);
+		Assert.assertEquals("urn:test", document.getDocumentElement().getNamespaceURI());
+		final int idle = XMLHttpBody.getIdleBuilders(false, true);
+		Assert.assertTrue(idle > 0);
+		// The builder is given back to the pool, and reset, after a parsing failure
+		try {
+			body("<root><unclosed></root>").getDom(false, true);
+			Assert.fail("The parsing should have failed");
+		} catch (SAXException e) {
+			// Expected
+		}
+		Assert.assertEquals(idle, XMLHttpBody.getIdleBuilders(false, true));
+		document = body(xml).getDom(false, true);
+		Assert.assertEquals("one", document.getDocumentElement().getTextContent());
+		Assert.assertEquals(idle, XMLHttpBody.getIdleBuilders(false, true));
+		// Each combination of options has its own builders
+		Assert.assertNull(body(xml).getDom(false, false).getDocumentElement().getNamespaceURI());
+	}
+
+	@Test
+	public void streamReader() throws IOException, ServletException, XMLStreamException {
+		final XMLStreamReader reader = body("<root><item id=\"1\">one</item><item id=\"2\">two</item></root>")
+				.getXMLStreamReader();
+		final StringBuilder items = new StringBuilder();
+		try {
+			while (reader.hasNext())
+				if (reader.next() == XMLStreamReader.START_ELEMENT && "item".equals(reader.getLocalName()))
+					items.append(reader.getAttributeValue(null, "id")).append('=').append(reader.getElementText());
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals("1=one2=two", items.toString());
+	}
+
+	/**
+	 * The content of an external entity must never be read
+	 */
+	@Test
+	public void streamReaderRejectsExternalEntities() throws IOException, ServletException {
+		final Path secret = temporaryFolder.newFile("secret.txt").toPath();
+		Files.write(secret, "SECRET".getBytes(StandardCharsets.UTF_8));
+		final String xml = "<?xml version=\"1.0\"?><!DOCTYPE root [<!ENTITY xxe SYSTEM \"" + secret.toUri() +
+				"\">]><root>&xxe;</root>";
+		final StringBuilder text = new StringBuilder();
+		try {
+			final XMLStreamReader reader = body(xml).getXMLStreamReader();
+			try {
+				while (reader.hasNext())
+					if (reader.next() == XMLStreamReader.CHARACTERS)
+						text.append(reader.getText());
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			// Rejecting the document is fine
+		}
+		Assert.assertFalse(text.toString(), text.toString().contains("SECRET"));
+	}
+}
@@ -17,7 +17,10 @@ package com.qwazr.webapps.test;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.qwazr.utils.ObjectMappers;
+import com.qwazr.webapps.ScriptEnginePool;
+import com.qwazr.webapps.StaticFileCache;
 import com.qwazr.webapps.WebappServer;
+import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.client.authentication.HttpAuthenticationFeature;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -28,10 +31,20 @@ import org.junit.runners.MethodSorters;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsNull.notNullValue;
@@ -248,6 +261,94 @@ public class FullTest implements TestChecker {
 		}
 	}
 
+	@Test
+	public void test220javascriptCompiledOnce() throws IOException, InterruptedException {
+		final ScriptEnginePool pool = WebappServer.getInstance().getWebappManager().getScriptEnginePool();
+		Assert.assertNotNull(pool);
+		final Path file = Paths.get(System.getProperty("QWAZR_DATA"), "js", "controller.js");
+		final byte[] original = Files.readAllBytes(file);
+		try {
+			checkResponse(target.path("/javascript").request().get(), 200).close();
+			// The controller is not compiled again as long as it does not change
+			final long compilations = pool.getCompilations();
+			for (int i = 0; i < 3; i++)
+				checkResponse(target.path("/javascript").request().get(), 200).close();
+			Assert.assertEquals(compilations, pool.getCompilations());
+
+			Files.write(file, (new String(original, StandardCharsets.UTF_8) +
+					"\nresponse.writer.println('<p>edited</p>')\n").getBytes(StandardCharsets.UTF_8));
+			String content = null;
+			for (int i = 0; i < 100 && (content == null || !content.contains("<p>edited</p>")); i++) {
+				if (i > 0)
+					Thread.sleep(100);
+				try (final Response response = target.path("/javascript").request().get()) {
+					content = checkEntity(checkResponse(response, 200), MediaType.TEXT_HTML_TYPE);
+				}
+			}
+			checkContains(content, "<p>edited</p>");
+			Assert.assertTrue(pool.getCompilations() > compilations);
+			// Let the watcher deliver the pending events of the write, then the edited controller is reused
+			Thread.sleep(500);
+			checkResponse(target.path("/javascript").request().get(), 200).close();
+			final long recompilations = pool.getCompilations();
+			for (int i = 0; i < 3; i++)
+				checkResponse(target.path("/javascript").request().get(), 200).close();
+			Assert.assertEquals(recompilations, pool.getCompilations());
+		} finally {
+			Files.write(file, original);
+		}
+	}
+
+	/**
+	 * The JAX-RS client rejects a malformed Content-Type, the request is sent with a plain connection
+	 */
+	private static HttpURLConnection post(final String path, final String contentType, final String body)
+			throws IOException {
+		final HttpURLConnection connection =
+				(HttpURLConnection) new URL(TestServer.BASE_SERVLET_URL + path).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", contentType);
+		try (final OutputStream output = connection.getOutputStream()) {
+			output.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		return connection;
+	}
+
+	@Test
+	public void test230javascriptBodyNotRead() throws IOException {
+		final HttpURLConnection connection = post("/javascript-body", "malformed", "{not json");
+		try {
+			Assert.assertEquals(200, connection.getResponseCode());
+			try (final InputStream input = connection.getInputStream()) {
+				Assert.assertEquals("ignored", IOUtils.toString(input, StandardCharsets.UTF_8));
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	public void test231javascriptBodyParseFailure() throws IOException {
+		// getBody() fails with a WebappException, the controller sends its status (400)
+		final HttpURLConnection connection = post("/javascript-body?read=true", "malformed", "{not json");
+		try {
+			Assert.assertEquals(400, connection.getResponseCode());
+			try (final InputStream input = connection.getErrorStream()) {
+				checkContains(IOUtils.toString(input, StandardCharsets.UTF_8), "BODY ERROR");
+			}
+		} finally {
+			connection.disconnect();
+		}
+		try (final Response response = target.path("/javascript-body")
+				.queryParam("read", "true")
+				.request()
+				.post(Entity.json("{\"valid\":true}"))) {
+			checkResponse(response, 200);
+			Assert.assertEquals("JsonHttpBody", response.readEntity(String.class));
+		}
+	}
+
 	@Test
 	public void test300staticFile() throws IOException {
 		final String badUrl = "/css/dummy.css";
@@ -280,6 +381,219 @@ public class FullTest implements TestChecker {
 		checkEntity(checkResponse(target.path(url).request().get(), 200), MIME_FAVICON);
 	}
 
+	@Test
+	public void test303staticRange() throws IOException {
+		final String url = "/css/test.css";
+		try (final Response response = target.path(url).request().header("Range", "bytes=0-5").get()) {
+			checkResponse(response, 206);
+			Assert.assertEquals("bytes 0-5/27", response.getHeaderString("Content-Range"));
+			Assert.assertEquals(".qwazr", response.readEntity(String.class));
+		}
+		try (final Response response = target.path(url).request().header("Range", "bytes=0-0,-2").get()) {
+			checkResponse(response, 206);
+			Assert.assertTrue(response.getMediaType().toString().startsWith("multipart/byteranges"));
+			checkContains(response.readEntity(String.class), "Content-Range: bytes 0-0/27",
+					"Content-Range: bytes 25-26/27");
+		}
+		try (final Response response = target.path(url).request().header("Range", "bytes=100-").get()) {
+			checkResponse(response, 416);
+			Assert.assertEquals("bytes */27", response.getHeaderString("Content-Range"));
+		}
+		try (final Response response = target.path(url)
+				.request()
+				.header("Range", "bytes=0-5")
+				.header("If-Range", "\"dummy\"")
+				.get()) {
+			checkResponse(response, 200);
+			checkContains(response.readEntity(String.class), ".qwazr {");
+		}
+		try (final Response response = target.path("/img/logo.png").request().header("Range", "bytes=1-3").get()) {
+			checkResponse(response, 206);
+			Assert.assertEquals("PNG", response.readEntity(String.class));
+		}
+	}
+
+	@Test
+	public void test304staticNotModified() throws IOException {
+		for (final String url : new String[] { "/css/test.css", "/img/logo.png" }) {
+			final String etag;
+			final String lastModified;
+			try (final Response response = target.path(url).request().get()) {
+				checkResponse(response, 200);
+				etag = response.getHeaderString("ETag");
+				lastModified = response.getHeaderString("Last-Modified");
+				assertThat(etag, notNullValue());
+				assertThat(lastModified, notNullValue());
+			}
+			try (final Response response = target.path(url).request().header("If-None-Match", etag).get()) {
+				checkResponse(response, 304);
+				Assert.assertEquals(etag, response.getHeaderString("ETag"));
+				Assert.assertFalse(response.hasEntity());
+			}
+			try (final Response response = target.path(url)
+					.request()
+					.header("If-Modified-Since", lastModified)
+					.get()) {
+				checkResponse(response, 304);
+				Assert.assertFalse(response.hasEntity());
+			}
+			try (final Response response = target.path(url).request().header("If-None-Match", "\"dummy\"").get()) {
+				checkResponse(response, 200);
+				Assert.assertTrue(response.hasEntity());
+			}
+		}
+	}
+
+	@Test
+	public void test305staticPrecompressed() throws IOException {
+		final String url = "/css/test.css";
+		try (final Response response = target.path(url).request().header("Accept-Encoding", "br;q=0, gzip").get()) {
+			checkResponse(response, 200);
+			checkContentType(response, MIME_TEXT_CSS);
+			Assert.assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+			Assert.assertEquals("Accept-Encoding", response.getHeaderString("Vary"));
+			try (final GZIPInputStream input = new GZIPInputStream(response.readEntity(InputStream.class))) {
+				checkContains(IOUtils.toString(input, StandardCharsets.UTF_8), ".qwazr {");
+			}
+		}
+		try (final Response response = target.path(url).request().header("Accept-Encoding", "br").get()) {
+			checkResponse(response, 200);
+			Assert.assertNull(response.getHeaderString("Content-Encoding"));
+			checkContains(checkEntity(response, MIME_TEXT_CSS), ".qwazr {");
+		}
+	}
+
+	@Test
+	public void test306staticCompression() throws IOException {
+		final String url = "/css/compressible.css";
+		final String etag;
+		try (final Response response = target.path(url).request().header("Accept-Encoding", "gzip").get()) {
+			checkResponse(response, 200);
+			checkContentType(response, MIME_TEXT_CSS);
+			Assert.assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+			Assert.assertEquals("Accept-Encoding", response.getHeaderString("Vary"));
+			etag = response.getHeaderString("ETag");
+			try (final GZIPInputStream input = new GZIPInputStream(response.readEntity(InputStream.class))) {
+				checkContains(IOUtils.toString(input, StandardCharsets.UTF_8), ".qwazr-20 {");
+			}
+		}
+		try (final Response response = target.path(url)
+				.request()
+				.header("Accept-Encoding", "gzip")
+				.header("If-None-Match", etag)
+				.get()) {
+			checkResponse(response, 304);
+		}
+		try (final Response response = target.path(url).request().get()) {
+			checkResponse(response, 200);
+			Assert.assertNull(response.getHeaderString("Content-Encoding"));
+			Assert.assertNotEquals(etag, response.getHeaderString("ETag"));
+			checkContains(checkEntity(response, MIME_TEXT_CSS), ".qwazr-20 {");
+		}
+		try (final Response response = target.path("/img/logo.png")
+				.request()
+				.header("Accept-Encoding", "gzip")
+				.get()) {
+			checkResponse(response, 200);
+			Assert.assertNull(response.getHeaderString("Content-Encoding"));
+		}
+	}
+
+	@Test
+	public void test307staticCache() throws IOException {
+		final StaticFileCache fileCache =
+				WebappServer.getInstance().getWebappManager().getStaticFileCaches().get("/html/*");
+		Assert.assertNotNull(fileCache);
+		final String url = "/html/index.html";
+		final String etag;
+		final String content;
+		try (final Response response = target.path(url).request().get()) {
+			checkResponse(response, 200);
+			etag = response.getHeaderString("ETag");
+			content = response.readEntity(String.class);
+		}
+		Assert.assertTrue(fileCache.getCount() > 0);
+		final long hits = fileCache.getHits();
+		final long misses = fileCache.getMisses();
+		try (final Response response = target.path(url).request().get()) {
+			checkResponse(response, 200);
+			Assert.assertEquals(etag, response.getHeaderString("ETag"));
+			Assert.assertEquals(content, response.readEntity(String.class));
+		}
+		try (final Response response = target.path(url).request().header("If-None-Match", etag).get()) {
+			checkResponse(response, 304);
+		}
+		try (final Response response = target.path(url).request().header("Range", "bytes=0-1").get()) {
+			checkResponse(response, 206);
+			Assert.assertEquals(content.substring(0, 2), response.readEntity(String.class));
+		}
+		// The three requests have been served from the cache
+		Assert.assertEquals(hits + 3, fileCache.getHits());
+		Assert.assertEquals(misses, fileCache.getMisses());
+	}
+
+	@Test
+	public void test308staticCacheWatch() throws IOException, InterruptedException {
+		final Path file = Paths.get(System.getProperty("QWAZR_DATA"), "html", "watched.html");
+		final String url = "/html/watched.html";
+		try {
+			Files.write(file, "first".getBytes(StandardCharsets.UTF_8));
+			try (final Response response = target.path(url).request().get()) {
+				checkResponse(response, 200);
+				Assert.assertEquals("first", response.readEntity(String.class));
+			}
+			Files.write(file, "second".getBytes(StandardCharsets.UTF_8));
+			String content = null;
+			for (int i = 0; i < 100 && !"second".equals(content); i++) {
+				Thread.sleep(100);
+				try (final Response response = target.path(url).request().get()) {
+					content = response.readEntity(String.class);
+				}
+			}
+			Assert.assertEquals("second", content);
+			Files.delete(file);
+			int status = 200;
+			for (int i = 0; i < 100 && status != 404; i++) {
+				Thread.sleep(100);
+				try (final Response response = target.path(url).request().get()) {
+					status = response.getStatus();
+				}
+			}
+			Assert.assertEquals(404, status);
+		} finally {
+			// A failure must not leave the file in the shared data directory
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void test309staticMapped() throws IOException {
+		final String url = "/mapped/test.css";
+		for (int i = 0; i < 2; i++) {
+			try (final Response response = target.path(url).request().get()) {
+				checkResponse(response, 200);
+				checkContains(checkEntity(response, MIME_TEXT_CSS), ".qwazr {");
+			}
+			try (final Response response = target.path(url).request().header("Range", "bytes=0-5").get()) {
+				checkResponse(response, 206);
+				Assert.assertEquals(".qwazr", response.readEntity(String.class));
+			}
+		}
+	}
+
+	@Test
+	public void test310staticSendfile() throws IOException {
+		// The sendfile threshold of /css/* is zero: the file is transferred by the container
+		final Path file = Paths.get(System.getProperty("QWAZR_DATA"), "css", "compressible.css");
+		final byte[] content = Files.readAllBytes(file);
+		try (final Response response = target.path("/css/compressible.css").request().get()) {
+			checkResponse(response, 200);
+			Assert.assertNull(response.getHeaderString("Content-Encoding"));
+			Assert.assertEquals(Integer.toString(content.length), response.getHeaderString("Content-Length"));
+			Assert.assertArrayEquals(content, response.readEntity(byte[].class));
+		}
+	}
+
 	@Test
 	public void test400staticHtml() throws IOException {
 		final String url = "/index";
@@ -304,6 +618,37 @@ public class FullTest implements TestChecker {
 				"QWAZR - Hello World!");
 	}
 
+	@Test
+	public void test500bodyMultipartStream() throws IOException {
+		final String body = "--XyZ\r\n" + "Content-Disposition: form-data; name=\"first\"\r\n\r\n" + "one\r\n" +
+				"--XyZ\r\n" + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n" +
+				"Content-Type: text/plain\r\n\r\n" + "two\r\nlines\r\n" + "--XyZ--\r\n";
+		try (final Response response = target.path("/body/multipart")
+				.request()
+				.post(Entity.entity(body, "multipart/form-data; boundary=XyZ"))) {
+			checkResponse(response, 200);
+			final String content = checkEntity(response, MediaType.TEXT_PLAIN_TYPE);
+			checkContains(content, "first=one\n", "file=two\r\nlines\n");
+			// getParts() is refused once the parts have been streamed
+			checkContains(content, "exclusive");
+		}
+	}
+
+	private String postJson(final String path, final String json) throws IOException {
+		try (final Response response = target.path(path).request().post(Entity.json(json))) {
+			return checkEntity(checkResponse(response, 200), MediaType.TEXT_PLAIN_TYPE);
+		}
+	}
+
+	@Test
+	public void test510bodyJson() throws IOException {
+		final String json = "{\"name\":\"test\",\"count\":3,\"nested\":{\"inner\":true}}";
+		Assert.assertEquals("test=3", postJson("/body/json/tree", json));
+		Assert.assertEquals("test=3", postJson("/body/json/value", "{\"name\":\"test\",\"count\":3}"));
+		Assert.assertEquals("3:test", postJson("/body/json/tree-value", json));
+		Assert.assertEquals("name;count;nested;inner;", postJson("/body/json/parser", json));
+	}
+
 	@Test
 	public void test800Filters() {
 		Assert.assertEquals(1, TestFilter.initializedFilters.size());
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015-2020 Emmanuel Keller / QWAZR
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qwazr.webapps.test;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.qwazr.webapps.body.HttpBodyInterface;
+import com.qwazr.webapps.body.JsonHttpBody;
+import com.qwazr.webapps.body.MultipartHttpBody;
+import com.qwazr.webapps.body.MultipartStream;
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the request body using the body types, and writes what has been read
+ */
+public class TestBodyServlet extends HttpServlet {
+
+	@Override
+	protected void doPost(final HttpServletRequest req, final HttpServletResponse resp)
+			throws ServletException, IOException {
+		final HttpBodyInterface body = HttpBodyInterface.newEntity(req);
+		resp.setContentType(MediaType.TEXT_PLAIN);
+		final PrintWriter writer = resp.getWriter();
+		switch (req.getPathInfo()) {
+		case "/multipart":
+			multipart((MultipartHttpBody) body, writer);
+			break;
+		case "/json/tree":
+			final JsonNode tree = ((JsonHttpBody) body).getTree();
+			writer.print(tree.get("name").asText() + '=' + tree.get("count").asInt());
+			break;
+		case "/json/value":
+			final Item item = ((JsonHttpBody) body).getValue(Item.class);
+			writer.print(item.name + '=' + item.count);
+			break;
+		case "/json/tree-value":
+			// The value is bound from the tree already read
+			final JsonHttpBody jsonBody = (JsonHttpBody) body;
+			writer.print(jsonBody.getTree().size() + ":" + jsonBody.getValue(Item.class).name);
+			break;
+		case "/json/parser":
+			parser((JsonHttpBody) body, writer);
+			break;
+		default:
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			break;
+		}
+	}
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class Item {
+
+		public String name;
+		public int count;
+	}
+
+	/**
+	 * Write the field names in the order of the stream
+	 */
+	private static void parser(final JsonHttpBody body, final PrintWriter writer) throws IOException {
+		try (final JsonParser parser = body.getParser()) {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null)
+				if (token == JsonToken.FIELD_NAME)
+					writer.print(parser.getCurrentName() + ';');
+		}
+	}
+
+	private static void multipart(final MultipartHttpBody body, final PrintWriter writer) throws IOException {
+		try (final MultipartStream parts = body.getPartStream()) {
+			MultipartStream.Part part;
+			while ((part = parts.nextPart()) != null)
+				writer.println(part.getName() + '=' + IOUtils.toString(part.getInputStream(), StandardCharsets.UTF_8));
+		}
+		// The parts are already streamed, they cannot be buffered anymore
+		try {
+			body.getParts();
+			writer.println("getParts");
+		} catch (IllegalStateException e) {
+			writer.println("exclusive");
+		}
+	}
+}
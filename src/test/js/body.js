@@ -0,0 +1,6 @@
+response.contentType = "text/plain"
+if (request.parameters.read) {
+    var body = request.getBody()
+    response.writer.print(body == null ? 'null' : body.getClass().getSimpleName())
+} else
+    response.writer.print('ignored')